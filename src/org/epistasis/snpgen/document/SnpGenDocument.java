@@ -587,6 +587,19 @@ public class SnpGenDocument
 	public int						minInteractionLevel;
 	public int						maxInteractionLevel;
 	public Integer					randomSeed;
+	public boolean					closedFormTables;
+	public boolean					fusedNormalization;
+	public Integer					searchThreadCount;
+	public boolean					generationStats;
+	public boolean					streamingSelection;
+	public boolean					seedIndexedTables;
+	public Double					convergenceTolerance;
+	public String					convergenceRule;
+	public boolean					stratifiedSampling;
+	public Double					targetScore;
+	public Double					targetScoreTolerance;
+	public Double					autoTryBudgetProbability;
+	public Integer					datasetThreadCount;
 	
 	private ArrayList<DocListener>	listeners;
 	
@@ -696,6 +709,19 @@ public class SnpGenDocument
 			"[{-t, --rasTryCount} integer]\n" +
 			
 			"[{-r, --randomSeed} integer]\n" +
+			"[{-c, --closedFormTables}]\n" +
+			"[{-N, --fusedNormalization}]\n" +
+			"[{-T, --searchThreads} integer]\n" +
+			"[{-S, --generationStats}]\n" +
+			"[{-s, --streamingSelection}]\n" +
+			"[{-e, --seedIndexedTables}]\n" +
+			"[{-C, --convergenceTolerance} float] " +
+			"[--convergenceRule {stability, dkw}]\n" +
+			"[{-F, --stratifiedSampling}] (fills quantiles that have no table near their target score from a further search stratified by basis exponent; the scores file keeps only the plain search's tables)\n" +
+			"[{-E, --targetScore} float] " +
+			"[--targetScoreTolerance float]\n" +
+			"[{-A, --autoTryBudget} probability]\n" +
+			"[{-P, --datasetThreads} integer]\n" +
 			
 			"[{-v, --predictiveInputFile} filename]\n" +
 			"[{-z, --noiseInputFile} filename]\n" +
@@ -821,6 +847,19 @@ public class SnpGenDocument
 			CmdLineParserSrc.Option minInteractionLevelOption = parser.addIntegerOption('n', "minInteractionLevel");
 			CmdLineParserSrc.Option maxInteractionLevelOption = parser.addIntegerOption('x', "maxInteractionLevel");
 			CmdLineParserSrc.Option randomSeedOption = parser.addIntegerOption('r', "randomSeed");
+			CmdLineParserSrc.Option closedFormTablesOption = parser.addBooleanOption('c', "closedFormTables");
+			CmdLineParserSrc.Option fusedNormalizationOption = parser.addBooleanOption('N', "fusedNormalization");
+			CmdLineParserSrc.Option searchThreadsOption = parser.addIntegerOption('T', "searchThreads");
+			CmdLineParserSrc.Option generationStatsOption = parser.addBooleanOption('S', "generationStats");
+			CmdLineParserSrc.Option streamingSelectionOption = parser.addBooleanOption('s', "streamingSelection");
+			CmdLineParserSrc.Option seedIndexedTablesOption = parser.addBooleanOption('e', "seedIndexedTables");
+			CmdLineParserSrc.Option convergenceToleranceOption = parser.addDoubleOption('C', "convergenceTolerance");
+			CmdLineParserSrc.Option convergenceRuleOption = parser.addStringOption("convergenceRule");
+			CmdLineParserSrc.Option stratifiedSamplingOption = parser.addBooleanOption('F', "stratifiedSampling");
+			CmdLineParserSrc.Option targetScoreOption = parser.addDoubleOption('E', "targetScore");
+			CmdLineParserSrc.Option targetScoreToleranceOption = parser.addDoubleOption("targetScoreTolerance");
+			CmdLineParserSrc.Option autoTryBudgetOption = parser.addDoubleOption('A', "autoTryBudget");
+			CmdLineParserSrc.Option datasetThreadsOption = parser.addIntegerOption('P', "datasetThreads");
 			CmdLineParserSrc.Option helpOption = parser.addBooleanOption('h', "help");
 			
 			CmdLineParserSrc datasetParser = new CmdLineParserSrc();
@@ -904,6 +943,19 @@ public class SnpGenDocument
 			minInteractionLevel = (Integer) parser.getOptionValue(minInteractionLevelOption, 1);
 			maxInteractionLevel = (Integer) parser.getOptionValue(maxInteractionLevelOption, 4);
 			randomSeed = (Integer) parser.getOptionValue(randomSeedOption, null);
+			closedFormTables = (Boolean) parser.getOptionValue(closedFormTablesOption, Boolean.FALSE);
+			fusedNormalization = (Boolean) parser.getOptionValue(fusedNormalizationOption, Boolean.FALSE);
+			searchThreadCount = (Integer) parser.getOptionValue(searchThreadsOption, null);
+			generationStats = (Boolean) parser.getOptionValue(generationStatsOption, Boolean.FALSE);
+			streamingSelection = (Boolean) parser.getOptionValue(streamingSelectionOption, Boolean.FALSE);
+			seedIndexedTables = (Boolean) parser.getOptionValue(seedIndexedTablesOption, Boolean.FALSE);
+			convergenceTolerance = (Double) parser.getOptionValue(convergenceToleranceOption, null);
+			convergenceRule = (String) parser.getOptionValue(convergenceRuleOption, null);
+			stratifiedSampling = (Boolean) parser.getOptionValue(stratifiedSamplingOption, Boolean.FALSE);
+			targetScore = (Double) parser.getOptionValue(targetScoreOption, null);
+			targetScoreTolerance = (Double) parser.getOptionValue(targetScoreToleranceOption, null);
+			autoTryBudgetProbability = (Double) parser.getOptionValue(autoTryBudgetOption, null);
+			datasetThreadCount = (Integer) parser.getOptionValue(datasetThreadsOption, null);
 			
 			Vector<String> datasetOptionList = parser.getOptionValues(datasetOption);
 			for(String s: datasetOptionList)
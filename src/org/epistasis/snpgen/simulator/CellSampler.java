@@ -0,0 +1,87 @@
+package org.epistasis.snpgen.simulator;
+
+import java.util.Random;
+
+// Samples the index of a cell with probability proportional to the cell's weight, in constant time, by Vose's version of
+// Walker's alias method. The n cells are divided into n equal columns; column i holds cell i with probability
+// probability[i], and otherwise holds cell alias[i]. A sample picks a column and then one of its two cells,
+// both from a single nextDouble(), so that it uses the same random numbers as a search of the cumulative intervals would.
+public class CellSampler
+{
+	private final double[] probability;
+	private final int[] alias;
+
+	// inWeights needn't sum to 1, but mustn't be negative, and at least one must be positive.
+	public CellSampler(double[] inWeights)
+	{
+		int cellCount = inWeights.length;
+		probability = new double[cellCount];
+		alias = new int[cellCount];
+
+		double sum = 0;
+		int heaviest = 0;
+		for(int i = 0; i < cellCount; ++i)
+		{
+			sum += inWeights[i];
+			if(inWeights[i] > inWeights[heaviest])
+				heaviest = i;
+		}
+
+		// scaled[i] == cellCount * the probability of cell i, so that a column holds a total of 1.
+		// Cells with less than 1 go on the small stack, the others on the large stack; each small cell is topped up from a large one.
+		double[] scaled = new double[cellCount];
+		int[] small = new int[cellCount];
+		int[] large = new int[cellCount];
+		int smallCount = 0;
+		int largeCount = 0;
+		for(int i = 0; i < cellCount; ++i)
+		{
+			scaled[i] = inWeights[i] * cellCount / sum;
+			if(scaled[i] < 1)
+				small[smallCount++] = i;
+			else
+				large[largeCount++] = i;
+		}
+		while(smallCount > 0 && largeCount > 0)
+		{
+			int less = small[--smallCount];
+			int more = large[--largeCount];
+			probability[less] = scaled[less];
+			alias[less] = more;
+			scaled[more] = (scaled[more] + scaled[less]) - 1;
+			if(scaled[more] < 1)
+				small[smallCount++] = more;
+			else
+				large[largeCount++] = more;
+		}
+		// Whatever is left is within rounding error of 1:
+		while(largeCount > 0)
+		{
+			int more = large[--largeCount];
+			probability[more] = 1;
+			alias[more] = more;
+		}
+		while(smallCount > 0)
+		{
+			int less = small[--smallCount];
+			// A cell with no weight must never be chosen:
+			probability[less] = (inWeights[less] > 0) ? 1 : 0;
+			alias[less] = heaviest;
+		}
+	}
+
+	public int getCellCount()
+	{
+		return probability.length;
+	}
+
+	public int sample(Random inRandom)
+	{
+		double column = inRandom.nextDouble() * probability.length;
+		int whichColumn = (int) column;
+		if(column - whichColumn < probability[whichColumn])
+			return whichColumn;
+		else
+			return alias[whichColumn];
+	}
+}
@@ -0,0 +1,171 @@
+package org.epistasis.snpgen.simulator;
+
+import org.epistasis.snpgen.exception.InputException;
+
+// Passes the tables of a table search on to another TableCollector, and watches their scores to tell when the search can stop early
+// because more tables wouldn't change the quantiles much. The scores are checked once per batch of tables, so whether and where
+// the search stops depends only on the order in which the tables are added, not on how long they took to find.
+// Two rules are supported:
+// Stability: the target scores of the quantiles (spread evenly from the lowest score to the highest, as in
+// SnpGenSimulator.selectRepresentativesUniformly()) have each moved by no more than tolerance * (the score range)
+// for kStableBatchCount batches in a row.
+// Dkw: by the Dvoretzky-Kiefer-Wolfowitz inequality, the empirical distribution of the scores is within tolerance
+// of the true one everywhere, with confidence at least kDkwConfidence; ie, 2 * exp(-2 * n * tolerance^2) <= 1 - kDkwConfidence.
+public class ConvergenceMonitor implements SnpGenSimulator.TableCollector
+{
+	public enum Rule
+	{
+		Stability,
+		Dkw;
+
+		public static Rule parseRule(String inName) throws InputException
+		{
+			for(Rule r: values())
+			{
+				if(r.name().equalsIgnoreCase(inName))
+					return r;
+			}
+			throw new InputException("Unknown convergence rule: " + inName);
+		}
+	}
+
+	public static final double kDkwConfidence = 0.95D;
+	private static final int kMinBatchSize = 100;
+	private static final int kStableBatchCount = 3;
+
+	private final SnpGenSimulator.TableCollector collector;
+	private final int quantileCount;
+	private final boolean useOddsRatio;
+	private final double tolerance;
+	private final Rule rule;
+	private final int batchSize;
+
+	private double minScore;
+	private double maxScore;
+	private double[] previousTargets;		// The target scores at the end of the last batch; null before the first
+	private double lastTargetChange;		// The largest move of any target score in the last batch, as a fraction of the score range
+	private int stableBatches;				// The number of batches in a row in which no target moved by more than the tolerance
+	private boolean converged;
+
+	public ConvergenceMonitor(SnpGenSimulator.TableCollector ioCollector, int inQuantileCount, boolean inUseOddsRatio, double inTolerance, Rule inRule)
+	{
+		collector = ioCollector;
+		quantileCount = inQuantileCount;
+		useOddsRatio = inUseOddsRatio;
+		tolerance = inTolerance;
+		rule = inRule;
+		batchSize = Math.max(kMinBatchSize, 10 * inQuantileCount);
+		lastTargetChange = Double.NaN;
+	}
+
+	public void add(PenetranceTable inTable)
+	{
+		double score = inTable.getQuantileScore(useOddsRatio);
+		if(collector.size() == 0)
+		{
+			minScore = score;
+			maxScore = score;
+		}
+		else
+		{
+			minScore = Math.min(minScore, score);
+			maxScore = Math.max(maxScore, score);
+		}
+		collector.add(inTable);
+		if(collector.size() % batchSize == 0)
+			checkBatch();
+	}
+
+	public int size()
+	{
+		return collector.size();
+	}
+
+	public double[] getSortedScores()
+	{
+		return collector.getSortedScores();
+	}
+
+	public PenetranceTable[] selectQuantileTables(int inQuantileCount) throws Exception
+	{
+		return collector.selectQuantileTables(inQuantileCount);
+	}
+
+	// The collector that the tables are passed on to.
+	public SnpGenSimulator.TableCollector getDelegate()
+	{
+		return collector;
+	}
+
+	// True once the rule has been met; no more tables need be added.
+	public boolean hasConverged()
+	{
+		return converged;
+	}
+
+	public Rule getRule()
+	{
+		return rule;
+	}
+
+	public double getTolerance()
+	{
+		return tolerance;
+	}
+
+	// The largest move of any target score over the last batch, as a fraction of the score range; NaN before the second batch.
+	public double getLastTargetChange()
+	{
+		return lastTargetChange;
+	}
+
+	// The confidence, by the DKW inequality, that the empirical distribution of the scores so far is within the tolerance of the true one.
+	public double getDkwConfidence()
+	{
+		return calcDkwConfidence(collector.size(), tolerance);
+	}
+
+	public static double calcDkwConfidence(int inSampleCount, double inTolerance)
+	{
+		return Math.max(0, 1 - 2 * Math.exp(-2 * inSampleCount * inTolerance * inTolerance));
+	}
+
+	private void checkBatch()
+	{
+		double[] targets = calcTargets();
+		if(previousTargets != null)
+		{
+			double range = maxScore - minScore;
+			double change = 0;
+			for(int i = 0; i < quantileCount; ++i)
+			{
+				double move = Math.abs(targets[i] - previousTargets[i]);
+				change = Math.max(change, (range > 0) ? (move / range) : move);
+			}
+			lastTargetChange = change;
+			if(change <= tolerance)
+				++stableBatches;
+			else
+				stableBatches = 0;
+		}
+		previousTargets = targets;
+
+		if(rule == Rule.Stability)
+			converged = (stableBatches >= kStableBatchCount);
+		else
+			converged = (getDkwConfidence() >= kDkwConfidence);
+	}
+
+	private double[] calcTargets()
+	{
+		double[] outTargets = new double[quantileCount];
+		for(int i = 0; i < quantileCount; ++i)
+		{
+			if(quantileCount == 1)
+				outTargets[i] = (minScore + maxScore) / 2;
+			else
+				outTargets[i] = minScore + i * ((maxScore - minScore) / (quantileCount - 1));
+		}
+		return outTargets;
+	}
+}
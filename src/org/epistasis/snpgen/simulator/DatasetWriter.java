@@ -0,0 +1,122 @@
+package org.epistasis.snpgen.simulator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Writes a dataset file as bytes, into a large buffer that's written to a FileChannel whenever it fills,
+// rather than through a PrintWriter, which encodes each value and each tab separately. The bytes are put into the buffer's array
+// directly, which avoids ByteBuffer's checks on each put().
+// Genotypes and classes are single digits, so they're written as bytes directly, a whole row's noise at a time; other text
+// (the header, and values read from input files) is encoded in the default charset, as a FileWriter would, so the files don't change.
+public class DatasetWriter
+{
+	private static final int kBufferSize = 1 << 20;
+	private static final byte kTab = '\t';
+	private static final byte[] kLineSeparator = System.getProperty("line.separator").getBytes();
+
+	private final FileOutputStream stream;
+	private final FileChannel channel;
+	private final byte[] bytes;
+	private final ByteBuffer buffer;		// Wraps bytes; its position is kept at 0 except while it's written out
+	private int byteCount;					// The number of bytes in the buffer
+
+	public DatasetWriter(File inDestFile) throws IOException
+	{
+		stream = new FileOutputStream(inDestFile);
+		channel = stream.getChannel();
+		bytes = new byte[kBufferSize];
+		buffer = ByteBuffer.wrap(bytes);
+	}
+
+	public void print(String inText) throws IOException
+	{
+		put(inText.getBytes());
+	}
+
+	public void print(int inValue) throws IOException
+	{
+		if(0 <= inValue && inValue <= 9)
+		{
+			makeRoom(1);
+			bytes[byteCount++] = (byte) ('0' + inValue);
+		}
+		else
+			print(Integer.toString(inValue));
+	}
+
+	public void printTab() throws IOException
+	{
+		makeRoom(1);
+		bytes[byteCount++] = kTab;
+	}
+
+	public void println() throws IOException
+	{
+		put(kLineSeparator);
+	}
+
+	// Write inValues[0..inCount-1], which must each be a single digit, each followed by a tab.
+	public void printDigitsWithTabs(int[] inValues, int inCount) throws IOException
+	{
+		int which = 0;
+		while(which < inCount)
+		{
+			makeRoom(2);
+			int end = Math.min(inCount, which + (kBufferSize - byteCount) / 2);
+			for(; which < end; ++which)
+			{
+				assert 0 <= inValues[which] && inValues[which] <= 9;
+				bytes[byteCount++] = (byte) ('0' + inValues[which]);
+				bytes[byteCount++] = kTab;
+			}
+		}
+	}
+
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	private void put(byte[] inBytes) throws IOException
+	{
+		if(inBytes.length > kBufferSize)
+		{
+			flush();
+			writeFully(ByteBuffer.wrap(inBytes));
+		}
+		else
+		{
+			makeRoom(inBytes.length);
+			System.arraycopy(inBytes, 0, bytes, byteCount, inBytes.length);
+			byteCount += inBytes.length;
+		}
+	}
+
+	private void makeRoom(int inByteCount) throws IOException
+	{
+		if(kBufferSize - byteCount < inByteCount)
+			flush();
+	}
+
+	private void flush() throws IOException
+	{
+		buffer.limit(byteCount);
+		writeFully(buffer);
+		buffer.clear();
+		byteCount = 0;
+	}
+
+	private void writeFully(ByteBuffer inBytes) throws IOException
+	{
+		while(inBytes.hasRemaining())
+			channel.write(inBytes);
+	}
+}
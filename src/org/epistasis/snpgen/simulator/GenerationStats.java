@@ -0,0 +1,170 @@
+package org.epistasis.snpgen.simulator;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts of what happened to the tries of one penetrance-table search, and how long each stage took.
+// All of the counters are atomic, so one GenerationStats can be shared by the threads of a search.
+public class GenerationStats
+{
+	// What became of a try:
+	public enum Outcome
+	{
+		Ambiguous,					// Construction failed: the table was ambiguous
+		Conflict,					// Construction failed: the table had a conflict
+		HeritabilityInfeasible,		// The table couldn't be normalized to the desired heritability
+		RowSumFailed,				// The normalized table failed the row-sum test
+		Accepted
+	}
+
+	// construct: building the unnormalized table; normalize: scaling it to the desired prevalence and heritability;
+	// score: checking the row sums of the normalized tables and sorting the accepted ones by their scores.
+	public enum Stage
+	{
+		Construct,
+		Normalize,
+		Score
+	}
+	
+	// Why the search stopped:
+	public enum StopReason
+	{
+		PopulationReached,		// It found the desired number of tables
+		TriesExhausted,			// It made all of its tries without finding that many
+		Converged				// Its ConvergenceMonitor found that the quantiles had settled
+	}
+
+	private final AtomicLongArray outcomeCounts = new AtomicLongArray(Outcome.values().length);
+	private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+	private final AtomicLongArray fixedConflictCounts = new AtomicLongArray(2);		// [0] == unsuccessfully, [1] == successfully
+	private final AtomicLong maxRowSumDeviationBits = new AtomicLong(Double.doubleToLongBits(0));	// The largest row-sum deviation of a table that failed the row-sum test
+	private volatile StopReason stopReason;		// null until the search is done
+	private volatile String convergenceReport;	// What the search's ConvergenceMonitor found, or null if it had none
+	private volatile String stratumReport;		// How many empty quantile bins stratified sampling filled from each stratum, or null if it didn't run
+
+	public void countOutcome(Outcome inOutcome)
+	{
+		outcomeCounts.incrementAndGet(inOutcome.ordinal());
+	}
+
+	public void addStageNanos(Stage inStage, long inNanos)
+	{
+		stageNanos.addAndGet(inStage.ordinal(), inNanos);
+	}
+
+	public void addFixedConflicts(int inSuccessfulCount, int inUnsuccessfulCount)
+	{
+		fixedConflictCounts.addAndGet(1, inSuccessfulCount);
+		fixedConflictCounts.addAndGet(0, inUnsuccessfulCount);
+	}
+
+	// Record the largest row-sum deviation (PenetranceTable.getRowSumDeviation()) of a table that failed the row-sum test.
+	public void addRowSumDeviation(double inDeviation)
+	{
+		long bits;
+		do
+		{
+			bits = maxRowSumDeviationBits.get();
+			if(inDeviation <= Double.longBitsToDouble(bits))
+				return;
+		}
+		while(!maxRowSumDeviationBits.compareAndSet(bits, Double.doubleToLongBits(inDeviation)));
+	}
+
+	public void add(GenerationStats inStats)
+	{
+		for(Outcome o: Outcome.values())
+			outcomeCounts.addAndGet(o.ordinal(), inStats.getCount(o));
+		for(Stage s: Stage.values())
+			stageNanos.addAndGet(s.ordinal(), inStats.getNanos(s));
+		addFixedConflicts((int) inStats.getFixedConflictCount(true), (int) inStats.getFixedConflictCount(false));
+		addRowSumDeviation(inStats.getMaxRowSumDeviation());
+	}
+
+	public long getCount(Outcome inOutcome)
+	{
+		return outcomeCounts.get(inOutcome.ordinal());
+	}
+
+	// Every try has exactly one outcome.
+	public long getTryCount()
+	{
+		long outCount = 0;
+		for(Outcome o: Outcome.values())
+			outCount += getCount(o);
+		return outCount;
+	}
+
+	public long getNanos(Stage inStage)
+	{
+		return stageNanos.get(inStage.ordinal());
+	}
+
+	public long getFixedConflictCount(boolean inSuccessfully)
+	{
+		return fixedConflictCounts.get(inSuccessfully ? 1 : 0);
+	}
+
+	// The largest row-sum deviation of the tables that failed the row-sum test, or 0 if none did.
+	public double getMaxRowSumDeviation()
+	{
+		return Double.longBitsToDouble(maxRowSumDeviationBits.get());
+	}
+
+	public StopReason getStopReason()
+	{
+		return stopReason;
+	}
+	
+	public void setStopReason(StopReason inStopReason)
+	{
+		stopReason = inStopReason;
+	}
+	
+	public String getConvergenceReport()
+	{
+		return convergenceReport;
+	}
+	
+	public void setConvergenceReport(String inConvergenceReport)
+	{
+		convergenceReport = inConvergenceReport;
+	}
+	
+	public String getStratumReport()
+	{
+		return stratumReport;
+	}
+	
+	public void setStratumReport(String inStratumReport)
+	{
+		stratumReport = inStratumReport;
+	}
+	
+	public void write(PrintWriter outputStream)
+	{
+		if(stopReason != null)
+			outputStream.println("Stopped: " + stopReason);
+		if(convergenceReport != null)
+			outputStream.println("Convergence: " + convergenceReport);
+		if(stratumReport != null)
+			outputStream.println("Stratified sampling: " + stratumReport);
+		outputStream.println("Tries: " + getTryCount());
+		for(Outcome o: Outcome.values())
+			outputStream.println(o + ": " + getCount(o));
+		if(getCount(Outcome.RowSumFailed) > 0)
+			outputStream.println("Largest row-sum deviation of a failed table: " + getMaxRowSumDeviation());
+		outputStream.println("Fixed conflicts successfully: " + getFixedConflictCount(true));
+		outputStream.println("Fixed conflicts unsuccessfully: " + getFixedConflictCount(false));
+		for(Stage s: Stage.values())
+			outputStream.println(s + " milliseconds: " + (getNanos(s) / 1000000));
+	}
+
+	public String toString()
+	{
+		StringWriter writer = new StringWriter();
+		write(new PrintWriter(writer));
+		return writer.toString();
+	}
+}
@@ -0,0 +1,123 @@
+package org.epistasis.snpgen.simulator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// The values of a dataset (genotypes, and the class in the last column), packed four to a byte, two bits each, row by row.
+// The packed rows are held in one or more ByteBuffers ("chunks") of whole rows, so that a matrix isn't limited to the size of one array.
+// The chunks are on the heap, off the heap (direct), or mapped from a temporary file, for matrices larger than the heap.
+public class GenotypeMatrix
+{
+	public enum Backing
+	{
+		Heap,
+		Direct,
+		Mapped
+	}
+
+	public static final int kMaxValue = 3;
+	private static final int kBitsPerValue = 2;
+	private static final int kValuesPerByte = 8 / kBitsPerValue;
+	private static final int kValueMask = (1 << kBitsPerValue) - 1;
+	private static final int kMaxChunkByteCount = 1 << 30;
+
+	private final int rowCount;
+	private final int columnCount;
+	private final Backing backing;
+	private final int bytesPerRow;
+	private final int rowsPerChunk;
+	private final ByteBuffer[] chunks;
+
+	public GenotypeMatrix(int inRowCount, int inColumnCount, Backing inBacking) throws IOException
+	{
+		rowCount = inRowCount;
+		columnCount = inColumnCount;
+		backing = inBacking;
+		bytesPerRow = (inColumnCount + kValuesPerByte - 1) / kValuesPerByte;
+		rowsPerChunk = Math.max(1, kMaxChunkByteCount / Math.max(1, bytesPerRow));
+		chunks = new ByteBuffer[(inRowCount + rowsPerChunk - 1) / rowsPerChunk];
+
+		RandomAccessFile mappedFile = null;
+		try
+		{
+			if(inBacking == Backing.Mapped)
+			{
+				File backingFile = File.createTempFile("genotypes", ".bin");
+				backingFile.deleteOnExit();
+				mappedFile = new RandomAccessFile(backingFile, "rw");
+			}
+			for(int i = 0; i < chunks.length; ++i)
+			{
+				int chunkByteCount = Math.min(rowsPerChunk, inRowCount - i * rowsPerChunk) * bytesPerRow;
+				switch(inBacking)
+				{
+				case Heap:
+					chunks[i] = ByteBuffer.allocate(chunkByteCount);
+					break;
+				case Direct:
+					chunks[i] = ByteBuffer.allocateDirect(chunkByteCount);
+					break;
+				case Mapped:
+					chunks[i] = mappedFile.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) i * rowsPerChunk * bytesPerRow, chunkByteCount);
+					break;
+				}
+			}
+		}
+		finally
+		{
+			// A mapping stays valid after its file is closed:
+			if(mappedFile != null)
+				mappedFile.close();
+		}
+	}
+
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	public int getColumnCount()
+	{
+		return columnCount;
+	}
+
+	public Backing getBacking()
+	{
+		return backing;
+	}
+
+	public int get(int inRow, int inColumn)
+	{
+		ByteBuffer chunk = chunks[inRow / rowsPerChunk];
+		int shift = kBitsPerValue * (inColumn % kValuesPerByte);
+		return (chunk.get(getByteIndex(inRow, inColumn)) >>> shift) & kValueMask;
+	}
+
+	public void set(int inRow, int inColumn, int inValue)
+	{
+		if(inValue < 0 || inValue > kMaxValue)
+			throw new IllegalArgumentException("A genotype matrix can't hold the value " + inValue);
+		ByteBuffer chunk = chunks[inRow / rowsPerChunk];
+		int byteIndex = getByteIndex(inRow, inColumn);
+		int shift = kBitsPerValue * (inColumn % kValuesPerByte);
+		chunk.put(byteIndex, (byte) ((chunk.get(byteIndex) & ~(kValueMask << shift)) | (inValue << shift)));
+	}
+
+	// Copy the matrix into an int array: outArray[row][column].
+	public int[][] toIntArray()
+	{
+		int[][] outArray = new int[rowCount][columnCount];
+		for(int row = 0; row < rowCount; ++row)
+		{
+			for(int column = 0; column < columnCount; ++column)
+				outArray[row][column] = get(row, column);
+		}
+		return outArray;
+	}
+
+	private int getByteIndex(int inRow, int inColumn)
+	{
+		return (inRow % rowsPerChunk) * bytesPerRow + inColumn / kValuesPerByte;
+	}
+}
@@ -0,0 +1,108 @@
+package org.epistasis.snpgen.simulator;
+
+// The genotype probabilities implied by a model's minor-allele frequencies.
+// These are the same for every table generated for the model, so they are computed once
+// and shared (never modified) by all of the model's PenetranceTables.
+public class GenotypeProbabilities
+{
+	private final int snpStateCount;
+	private final int attributeCount;
+	private final int cellCount;
+	private final double[] minorAlleleFrequencies;
+	private final double[] majorAlleleFrequencies;
+	private final double[][] stateProbability;
+	private final double[] cellProbabilities;
+
+	public GenotypeProbabilities(int inSnpStateCount, float[] inMinorAlleleFrequencies)
+	{
+		snpStateCount = inSnpStateCount;
+		attributeCount = inMinorAlleleFrequencies.length;
+		minorAlleleFrequencies = new double[attributeCount];
+		majorAlleleFrequencies = new double[attributeCount];
+		for (int i = 0; i < attributeCount; ++i)
+		{
+			minorAlleleFrequencies[i] = inMinorAlleleFrequencies[i];
+			majorAlleleFrequencies[i] = 1 - minorAlleleFrequencies[i];
+		}
+
+		// stateProbability[i][0] == the probability of each state of the ith attribute.
+		// If snpStateCount == 3, stateProbability[i][0] == prob of AA, [i][1] == prob of Aa or aA, and [i][2] == prob of aa;
+		// ie, the major allele comes first and the minor allele comes last.
+		// What do others mean?
+		// 4 = AAA, AAa or AaA or aAA, Aaa or aAa or aaA, aaa
+		// etc (binomial expansion)
+
+		stateProbability = new double[attributeCount][snpStateCount];
+		int comb = 1; // N = snpStateCount - 1, comb(N, 0) = N! / (0! * (N-0)!) = 1
+		for (int j = 0; j < snpStateCount; ++j)
+		{
+			for (int i = 0; i < attributeCount; ++i)
+			{
+				stateProbability[i][j] = comb * Math.pow(minorAlleleFrequencies[i], j) * Math.pow(majorAlleleFrequencies[i], snpStateCount - j - 1);
+			}
+			// Calculate the next comb:
+			// N = snpStateCount - 1, comb(N, j) = N! / (j! * (N-j)!)
+			// comb(N, j+1) = comb(N, j) * (N - (j-1)) / j
+			comb *= snpStateCount - 1 - j; // Divide the denominator by (N-j)
+			comb /= j + 1; // Multiply the denominator by the next j
+		}
+
+		// cellProbabilities[i] == the product of the stateProbabilities of the indices of the cell with master-index i:
+		int count = 1;
+		for (int i = 0; i < attributeCount; ++i)
+			count *= snpStateCount;
+		cellCount = count;
+		cellProbabilities = new double[cellCount];
+		PenetranceTable.CellId cellId = new PenetranceTable.CellId(attributeCount);
+		for (int i = 0; i < cellCount; ++i)
+		{
+			cellId.fromMasterIndex(snpStateCount, attributeCount, i);
+			double product = 1;
+			for (int dimension = 0; dimension < attributeCount; ++dimension)
+				product *= stateProbability[dimension][cellId.getIndex(dimension)];
+			cellProbabilities[i] = product;
+		}
+	}
+
+	public int getSnpStateCount()
+	{
+		return snpStateCount;
+	}
+
+	public int getAttributeCount()
+	{
+		return attributeCount;
+	}
+
+	public int getCellCount()
+	{
+		return cellCount;
+	}
+
+	// The arrays below are shared, not copied, so callers must not modify them.
+
+	double[] getMinorAlleleFrequencies()
+	{
+		return minorAlleleFrequencies;
+	}
+
+	double[] getMajorAlleleFrequencies()
+	{
+		return majorAlleleFrequencies;
+	}
+
+	double[][] getStateProbabilities()
+	{
+		return stateProbability;
+	}
+
+	double[] getCellProbabilities()
+	{
+		return cellProbabilities;
+	}
+
+	public double getCellProbability(int inMasterIndex)
+	{
+		return cellProbabilities[inMasterIndex];
+	}
+}
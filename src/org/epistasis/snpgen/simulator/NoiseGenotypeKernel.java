@@ -0,0 +1,58 @@
+package org.epistasis.snpgen.simulator;
+
+import java.util.Random;
+
+// Generates the noise genotypes of a row of a dataset for all of the noise attributes at once.
+// Each genotype is drawn as SnpGenSimulator.noiseToOutput() draws it, from one nextDouble() compared with the attribute's cumulative
+// genotype frequencies (from PenetranceTable.calcAlleleFrequencies()), but the comparisons are made on the 53 random bits behind
+// the nextDouble(), against integer thresholds computed once per attribute, and without branches: the genotype is the number
+// of thresholds that the bits are at or above. Since nextDouble() == bits / 2^53 exactly, nextDouble() < f exactly when
+// bits < ceil(f * 2^53), so the genotypes, and the random numbers used, are the same as noiseToOutput()'s.
+public class NoiseGenotypeKernel
+{
+	private static final double kTwoTo53 = 9007199254740992D;
+
+	private final int attributeCount;
+	private final long[] majorMinorThresholds;		// bits >= majorMinorThresholds[i] means at least major-minor
+	private final long[] minorMinorThresholds;		// bits >= minorMinorThresholds[i] means minor-minor
+
+	// inAlleleFrequencies[i] == the genotype frequencies of the ith noise attribute, major-major first.
+	public NoiseGenotypeKernel(double[][] inAlleleFrequencies)
+	{
+		attributeCount = inAlleleFrequencies.length;
+		majorMinorThresholds = new long[attributeCount];
+		minorMinorThresholds = new long[attributeCount];
+		for(int i = 0; i < attributeCount; ++i)
+		{
+			majorMinorThresholds[i] = (long) Math.ceil(inAlleleFrequencies[i][0] * kTwoTo53);
+			minorMinorThresholds[i] = (long) Math.ceil((inAlleleFrequencies[i][0] + inAlleleFrequencies[i][1]) * kTwoTo53);
+		}
+	}
+
+	public int getAttributeCount()
+	{
+		return attributeCount;
+	}
+
+	// Set outGenotypes[0..attributeCount-1] to the genotypes (0, 1 or 2) of the next row's noise attributes.
+	public void generate(Random inRandom, int[] outGenotypes)
+	{
+		if(inRandom instanceof UnsynchronizedRandom)
+		{
+			UnsynchronizedRandom random = (UnsynchronizedRandom) inRandom;
+			for(int i = 0; i < attributeCount; ++i)
+				outGenotypes[i] = countThresholdsReached(random.nextDoubleBits(), i);
+		}
+		else
+		{
+			for(int i = 0; i < attributeCount; ++i)
+				outGenotypes[i] = countThresholdsReached((long) (inRandom.nextDouble() * kTwoTo53), i);
+		}
+	}
+
+	// (threshold - 1 - bits) is negative, so has its sign bit set, exactly when bits >= threshold; neither is more than 2^53.
+	private int countThresholdsReached(long inBits, int inWhichAttribute)
+	{
+		return (int) (((majorMinorThresholds[inWhichAttribute] - 1 - inBits) >>> 63) + ((minorMinorThresholds[inWhichAttribute] - 1 - inBits) >>> 63));
+	}
+}
@@ -7,7 +7,6 @@ import java.io.PrintWriter;
 import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.Random;
 
 public class PenetranceTable implements Cloneable
@@ -148,98 +147,6 @@ public class PenetranceTable implements Cloneable
 		}
 	}
 
-	public static class PenetranceCell implements Cloneable
-	{
-		public boolean isSet;
-		private double value;
-		public boolean isBasisElement;
-		private int whichBasisElement;
-		
-		public PenetranceCell()
-		{
-			clear();
-		}
-
-		public PenetranceCell(PenetranceCell inCell)
-		{
-			setValue(inCell.getValue());
-			isSet = inCell.isSet;
-			setWhichBasisElement(inCell.getWhichBasisElement());
-			isBasisElement = inCell.isBasisElement;
-		}
-
-		public PenetranceCell(double inValue)
-		{
-			setValue(inValue);
-			isSet = true;
-			isBasisElement = false;
-		}
-
-		public PenetranceCell(double inValue, int inWhichBasisElement)
-		{
-			setValue(inValue);
-			isSet = true;
-			setWhichBasisElement(inWhichBasisElement);
-			isBasisElement = true;
-		}
-		
-		public Object clone() throws CloneNotSupportedException
-		{
-			return super.clone();
-		}
-		
-		public void clear()
-		{
-			isSet = false;
-			isBasisElement = false;
-		}
-
-		public void setValue(double value)
-		{
-			this.value = value;
-			this.isSet = true;
-		}
-
-		public double getValue()
-		{
-			return value;
-		}
-
-		public void setWhichBasisElement(int whichBasisElement)
-		{
-			this.whichBasisElement = whichBasisElement;
-			this.isBasisElement = true;
-		}
-
-		public int getWhichBasisElement()
-		{
-			return whichBasisElement;
-		}
-	}
-
-	public static class PenetranceCellWithId extends PenetranceCell
-	{
-		public CellId cellId;
-
-		public PenetranceCellWithId(CellId inCellId)
-		{
-			super();
-			cellId = new CellId(inCellId);
-		}
-
-		public PenetranceCellWithId(CellId inCellId, double inValue)
-		{
-			super(inValue);
-			cellId = new CellId(inCellId);
-		}
-
-		public PenetranceCellWithId(CellId inCellId, double inValue, Integer inWhichBasisElement)
-		{
-			super(inValue, inWhichBasisElement);
-			cellId = new CellId(inCellId);
-		}
-	}
-
 	// The basis of a penetrance table is the set of independent parameters that
 	// are used to generate the table.
 	public static class BasisCell implements Cloneable
@@ -280,6 +187,15 @@ public class PenetranceTable implements Cloneable
 		}
 	}
 	
+	// The statistics of a normalized table, as calculated together by calcMetrics().
+	public static class Metrics
+	{
+		public double prevalence;
+		public double heritability;
+		public double edm;
+		public double oddsRatio;
+	}
+	
 	public static class PenetranceTableComparatorEdm implements Comparator<PenetranceTable>
 	{
 		public int compare(PenetranceTable in1, PenetranceTable in2)
@@ -329,28 +245,53 @@ public class PenetranceTable implements Cloneable
 	public double oddsRatio;
 	
 	public double fractionContribution;		// Fractional contribution that this table/model will make to a dataset, when heterogeneity is used. (A bit of a kluge.)
+	private long generationSeed;			// The seed this table was built from, if it was found by a seed-indexed search
+	private double basisExponent = 1;		// initialize() raises each uniform basis draw to this power before normalizing the basis
 
 	public boolean useOriginAsStart;
 	public double[] minorAlleleFrequencies;
 	public double[] majorAlleleFrequencies;
 	public double[][] stateProbability;
+	private double[] cellProbabilities;		// cellProbabilities[i] == the product of the stateProbabilities of the ith cell's indices
+	private GenotypeProbabilities genotypeProbabilities;	// Shared and immutable; the four arrays above belong to it
+	private Metrics scratchMetrics;
 	public CellId startPoint;
 	public int cellCount;
+	private int[] dimensionStrides;		// dimensionStrides[i] == the change in master-index from one step along dimension i
 	public int basisSize;
 	public BasisCell[] basis;
 	public int basisNext;
-	public LinkedList<PenetranceCellWithId> pendingCellsToSet;
+	private int[] pendingCells;				// Ring buffer of the master-indices of cells whose values are forced but not set yet
+	private double[] pendingCellValues;		// The forced values of the cells in pendingCells
+	private boolean[] cellIsPending;
+	private int pendingCellsHead;
+	private int pendingCellsCount;
 	
-	public static int fixedConflictSuccessfully = 0;
-	public static int fixedConflictUnsuccessfully = 0;
+	// The number of conflicts that fixConflict() has fixed, or tried to fix, since the last reset():
+	public int fixedConflictSuccessfully;
+	public int fixedConflictUnsuccessfully;
 	public boolean normalized;
 	public boolean rowSumsValid;
-	public PenetranceCell[] cells;
+	private double rowSumDeviation;		// The largest deviation of a row-sum in the table, as of the last checkRowSums()
+	// The cells are stored as parallel primitive arrays, indexed by master-index, so that setting a cell never allocates:
+	private double[] cellValues;
+	private boolean[] cellIsSet;
+	// emptyCells[0..emptyCellCount-1] holds the master-indices of the cells that aren't set, in no particular order,
+	// and emptyCellPositions[i] is the position of cell i in emptyCells (only meaningful while cell i is empty):
+	private int[] emptyCells;
+	private int[] emptyCellPositions;
+	private int emptyCellCount;
+	private boolean[] cellIsBasisElement;
+	private int[] cellWhichBasisElement;
 	public int[] cellCaseCount;
 	public int[] cellControlCount;
 	public double[] caseIntervals;
 	public double[] controlIntervals;
 	private boolean usePointMethod;
+	private CellId pickedCellId;				// Scratch space for pickNextEmptyCell()
+	private double[] closedFormSource;			// Scratch space for generateUnnormalizedClosedForm(), allocated when first needed
+	private double[] closedFormDest;
+	private double[][][] contrastVectors;		// contrastVectors[i] == the basis of the contrast space for attribute i
 	private CellId blockedOutCellForPointMethod;
 	private int nextMasterCellIdForPointMethod;
 	
@@ -361,8 +302,10 @@ public class PenetranceTable implements Cloneable
 		usePointMethod = (attributeCount >= 6);
 		cellCount = 1;
 		basisSize = 1;
+		dimensionStrides = new int[attributeCount];
 		for (int i = 0; i < attributeCount; ++i)
 		{
+			dimensionStrides[i] = cellCount;
 			cellCount *= snpStateCount;
 			basisSize *= (snpStateCount - 1);
 		}
@@ -370,18 +313,23 @@ public class PenetranceTable implements Cloneable
 		minorAlleleFrequencies = new double[attributeCount];
 		majorAlleleFrequencies = new double[attributeCount];
 		stateProbability = new double[attributeCount][snpStateCount];
+		cellProbabilities = new double[cellCount];
+		scratchMetrics = new Metrics();
 		startPoint = new CellId(attributeCount);
-		cells = new PenetranceCell[cellCount];
+		pickedCellId = new CellId(attributeCount);
+		cellValues = new double[cellCount];
+		cellIsSet = new boolean[cellCount];
+		emptyCells = new int[cellCount];
+		emptyCellPositions = new int[cellCount];
+		cellIsBasisElement = new boolean[cellCount];
+		cellWhichBasisElement = new int[cellCount];
 		cellCaseCount = new int[cellCount];
 		cellControlCount = new int[cellCount];
-		// penetranceIsSet = new boolean[penetranceArraySize];
-		pendingCellsToSet = new LinkedList<PenetranceCellWithId>();
+		pendingCells = new int[cellCount];
+		pendingCellValues = new double[cellCount];
+		cellIsPending = new boolean[cellCount];
 		basis = new BasisCell[basisSize];
 		basisNext = -1;
-		
-		// TODO: Could reuse the cells from run to run, to save time on garbage-collection
-		for (int i = 0; i < cellCount; ++i)
-			cells[i] = new PenetranceCell();
 		clear();
 	}
 	
@@ -389,12 +337,8 @@ public class PenetranceTable implements Cloneable
 	{
 		PenetranceTable pt = (PenetranceTable) super.clone();
 		pt.attributeNames = Arrays.copyOf(attributeNames, attributeNames.length);
-		pt.minorAlleleFrequencies = Arrays.copyOf(minorAlleleFrequencies, minorAlleleFrequencies.length);
-		pt.majorAlleleFrequencies = Arrays.copyOf(majorAlleleFrequencies, majorAlleleFrequencies.length);
-
-		pt.stateProbability = new double[stateProbability.length][];
-		for(int i = 0; i < stateProbability.length; ++i)
-			pt.stateProbability[i] = Arrays.copyOf(stateProbability[i], stateProbability[i].length);
+		// The genotype probabilities are immutable, so the clone shares them rather than copying them.
+		pt.scratchMetrics = new Metrics();
 
 		pt.basis = new BasisCell[basis.length];
 		for(int i = 0; i < basis.length; ++i)
@@ -405,59 +349,87 @@ public class PenetranceTable implements Cloneable
 				pt.basis[i] = (BasisCell) basis[i].clone();
 		}
 
-		pt.cells = new PenetranceCell[cells.length];
-		for(int i = 0; i < cells.length; ++i)
-		{
-			pt.cells[i] = (PenetranceCell) cells[i].clone();
-			pt.cellCaseCount[i] = cellCaseCount[i];
-			pt.cellControlCount[i] = cellControlCount[i];
-		}
-		
+		pt.cellValues = Arrays.copyOf(cellValues, cellValues.length);
+		pt.cellIsSet = Arrays.copyOf(cellIsSet, cellIsSet.length);
+		pt.emptyCells = Arrays.copyOf(emptyCells, emptyCells.length);
+		pt.emptyCellPositions = Arrays.copyOf(emptyCellPositions, emptyCellPositions.length);
+		pt.cellIsBasisElement = Arrays.copyOf(cellIsBasisElement, cellIsBasisElement.length);
+		pt.cellWhichBasisElement = Arrays.copyOf(cellWhichBasisElement, cellWhichBasisElement.length);
+		pt.cellCaseCount = Arrays.copyOf(cellCaseCount, cellCaseCount.length);
+		pt.cellControlCount = Arrays.copyOf(cellControlCount, cellControlCount.length);
+		pt.pendingCells = new int[cellCount];
+		pt.pendingCellValues = new double[cellCount];
+		pt.cellIsPending = new boolean[cellCount];
+		pt.pickedCellId = new CellId(attributeCount);
+		pt.startPoint = new CellId(startPoint);
+		if(blockedOutCellForPointMethod != null)
+			pt.blockedOutCellForPointMethod = new CellId(blockedOutCellForPointMethod);
+		pt.closedFormSource = null;
+		pt.closedFormDest = null;
+		pt.contrastVectors = null;
+
 		return pt;
 	}
 
 	public void clear()
 	{
-		for (int i = 0; i < cellCount; ++i)
-			cells[i].clear();
-		
+		Arrays.fill(cellIsSet, false);
 		for (int i = 0; i < cellCount; ++i)
 		{
-			cellCaseCount[i] = 0;
-			cellControlCount[i] = 0;
+			emptyCells[i] = i;
+			emptyCellPositions[i] = i;
 		}
+		emptyCellCount = cellCount;
+		Arrays.fill(cellIsBasisElement, false);
+		Arrays.fill(cellCaseCount, 0);
+		Arrays.fill(cellControlCount, 0);
+	}
+
+	// Return the table to the state it was in just after construction, keeping all of its arrays,
+	// so that one table can be used for many tries without allocating a new one each time.
+	// The desired heritability and prevalence, the attribute names, the basis exponent and the fractionContribution are kept.
+	public void reset()
+	{
+		clear();
+		Arrays.fill(cellIsPending, false);
+		pendingCellsHead = 0;
+		pendingCellsCount = 0;
+		basisNext = -1;
+		cellsPicked = 0;
+		fixedConflictSuccessfully = 0;
+		fixedConflictUnsuccessfully = 0;
+		normalized = false;
+		rowSumsValid = false;
+		rowSumDeviation = 0;
+		prevalence = 0;
+		actualHeritability = 0;
+		edm = 0;
+		oddsRatio = 0;
+		caseIntervals = null;
+		controlIntervals = null;
 	}
 
 	public void setMinorAlleleFrequencies(float[] inMinorAlleleFrequencies)
 	{
 		assert inMinorAlleleFrequencies.length == attributeCount;
-		for (int i = 0; i < attributeCount; ++i)
-		{
-			minorAlleleFrequencies[i] = inMinorAlleleFrequencies[i];
-			majorAlleleFrequencies[i] = 1 - minorAlleleFrequencies[i];
-		}
-
-		// stateProbability[i][0] == the probability of each state of the ith attribute.
-		// If snpStateCount == 3, stateProbability[i][0] == prob of AA, [i][1] == prob of Aa or aA, and [i][2] == prob of aa;
-		// ie, the major allele comes first and the minor allele comes last.
-		// What do others mean?
-		// 4 = AAA, AAa or AaA or aAA, Aaa or aAa or aaA, aaa
-		// etc (binomial expansion)
-
-		int comb = 1; // N = snpStateCount - 1, comb(N, 0) = N! / (0! * (N-0)!) = 1
-		for (int j = 0; j < snpStateCount; ++j)
-		{
-			// System.out.println("comb(" + (snpStateCount - 1) + ", " + j + ") = " + comb);
-			for (int i = 0; i < attributeCount; ++i)
-			{
-				stateProbability[i][j] = comb * Math.pow(minorAlleleFrequencies[i], j) * Math.pow(majorAlleleFrequencies[i], snpStateCount - j - 1);
-			}
-			// Calculate the next comb:
-			// N = snpStateCount - 1, comb(N, j) = N! / (j! * (N-j)!)
-			// comb(N, j+1) = comb(N, j) * (N - (j-1)) / j
-			comb *= snpStateCount - 1 - j; // Divide the denominator by (N-j)
-			comb /= j + 1; // Multiply the denominator by the next j
-		}
+		setGenotypeProbabilities(new GenotypeProbabilities(snpStateCount, inMinorAlleleFrequencies));
+	}
+	
+	// Point this table at a model's precomputed genotype probabilities, which may be shared with other tables.
+	public void setGenotypeProbabilities(GenotypeProbabilities inGenotypeProbabilities)
+	{
+		assert inGenotypeProbabilities.getSnpStateCount() == snpStateCount;
+		assert inGenotypeProbabilities.getAttributeCount() == attributeCount;
+		genotypeProbabilities = inGenotypeProbabilities;
+		minorAlleleFrequencies = inGenotypeProbabilities.getMinorAlleleFrequencies();
+		majorAlleleFrequencies = inGenotypeProbabilities.getMajorAlleleFrequencies();
+		stateProbability = inGenotypeProbabilities.getStateProbabilities();
+		cellProbabilities = inGenotypeProbabilities.getCellProbabilities();
+	}
+	
+	public GenotypeProbabilities getGenotypeProbabilities()
+	{
+		return genotypeProbabilities;
 	}
 	
 	// frequency[0] is the major-major allele and frequency[2] is the minor-minor allele.
@@ -491,19 +463,46 @@ public class PenetranceTable implements Cloneable
 		return minorAlleleFrequencies;
 	}
 	
+	public long getGenerationSeed()
+	{
+		return generationSeed;
+	}
+	
+	public void setGenerationSeed(long inGenerationSeed)
+	{
+		generationSeed = inGenerationSeed;
+	}
+	
+	// An exponent above 1 makes initialize() draw basis values that are mostly small with a few large ones; below 1, values that are more even.
+	// 1, the default, draws them uniformly. It is kept by reset().
+	public double getBasisExponent()
+	{
+		return basisExponent;
+	}
+	
+	public void setBasisExponent(double inBasisExponent)
+	{
+		basisExponent = inBasisExponent;
+	}
+	
 	public double getActualHeritability()
 	{
 		return actualHeritability;
 	}
 	
 	public void initialize(Random inRandom, float[] inMinorAlleleFrequencies)
+	{
+		initialize(inRandom, new GenotypeProbabilities(snpStateCount, inMinorAlleleFrequencies));
+	}
+	
+	public void initialize(Random inRandom, GenotypeProbabilities inGenotypeProbabilities)
 	{
 		rowSumsValid = false;
 		normalized = false;
 		
 		useOriginAsStart = false;
 		
-		setMinorAlleleFrequencies(inMinorAlleleFrequencies);
+		setGenotypeProbabilities(inGenotypeProbabilities);
 
 		double value;
 		double basisSquaredSum = 0;
@@ -511,7 +510,13 @@ public class PenetranceTable implements Cloneable
 		for (int i = 0; i < basisSize; ++i)
 		{
 			value = inRandom.nextDouble();
-			basis[i] = new BasisCell(value, kWhichPenetranceCellNone);
+			if (basisExponent != 1)
+				value = Math.pow(value, basisExponent);
+			if (basis[i] == null)
+				basis[i] = new BasisCell();
+			basis[i].isSet = true;
+			basis[i].value = value;
+			basis[i].whichPenetranceCell = kWhichPenetranceCellNone;
 			basisSquaredSum += value * value;
 		}
 		double normalizingFactor = 1 / Math.sqrt(basisSquaredSum);
@@ -535,7 +540,7 @@ public class PenetranceTable implements Cloneable
 	private ErrorState generateFakeUnnormalizedPenetranceTable() throws Exception
 	{
 		for(int i = 0; i < cellCount; ++i)
-			cells[i] = new PenetranceCell(i%2);
+			setPenetranceValue(i, i%2);
 		return ErrorState.None;
 	}
 
@@ -543,13 +548,14 @@ public class PenetranceTable implements Cloneable
 	{
 		ErrorState error;
 		ErrorState outError = ErrorState.None;
-		CellId cellId = new CellId(attributeCount);
+		int masterIndex;
 		double penetranceValue;
 		boolean emptyCellsRemaining;
 		
 		if(usePointMethod)
 		{
-			blockedOutCellForPointMethod = new CellId(attributeCount);
+			if(blockedOutCellForPointMethod == null)
+				blockedOutCellForPointMethod = new CellId(attributeCount);
 			masterIndexToCellId(inRandom.nextInt(cellCount), blockedOutCellForPointMethod);
 			nextMasterCellIdForPointMethod = 0;
 		}
@@ -563,14 +569,14 @@ public class PenetranceTable implements Cloneable
 			emptyCellsRemaining = emptyCellRemaining();
 			if (!emptyCellsRemaining)
 				break;
-			pickNextEmptyCell(inRandom, cellId);
+			masterIndex = pickNextEmptyCell(inRandom);
 			++cellsPicked;
 			// if(cellsPicked > basisSize)
 			// {
 			// outError = ErrorState.Ambiguous;
 			// break;
 			// }
-			error = setRandomPenetranceValueAndPropagateIt(cellId);
+			error = setRandomPenetranceValueAndPropagateIt(masterIndex);
 			if (error != ErrorState.None)
 			{
 				outError = error;
@@ -580,35 +586,148 @@ public class PenetranceTable implements Cloneable
 		return outError;
 	}
 
-	// Return true if there are any cells not set yet, false otherwise.
-	private boolean emptyCellRemaining()
+	// Construct an unnormalized table directly, without propagation, so that it can never be Ambiguous or in Conflict.
+	// A table has all of its weighted row-sums == kPenetranceSum == 0 exactly when it lies in the tensor product of
+	// the per-locus "contrast" spaces, where the contrast space of locus i is the set of vectors orthogonal to stateProbability[i].
+	// Each contrast space has dimension snpStateCount - 1, so the tensor product has dimension basisSize,
+	// and we use the (randomly signed) basis values from initialize() as the coordinates of the table in that space.
+	// initialize() must have been called first.
+	public ErrorState generateUnnormalizedClosedForm(Random inRandom)
 	{
-		boolean outFoundEmpty;
+		long seed = inRandom.nextLong();
+		inRandom.setSeed(seed);
+		double[] coordinates = getClosedFormSource();
+		for (int i = 0; i < basisSize; ++i)
+			coordinates[i] = inRandom.nextBoolean() ? basis[i].value : -basis[i].value;
+		expandCoordinates();
+		return ErrorState.None;
+	}
 
-		outFoundEmpty = false;
-		for (int i = 0; i < cellCount; ++i)
+	// Construct the unnormalized table whose coordinates in the tensor product of the contrast spaces
+	// (see generateUnnormalizedClosedForm()) are inCoordinates[0..basisSize-1], which are indexed like the cells,
+	// but with snpStateCount - 1 entries along each dimension. The table always passes the row-sum test.
+	// The genotype probabilities must have been set first, by initialize() or setGenotypeProbabilities().
+	public void generateUnnormalizedFromCoordinates(double[] inCoordinates)
+	{
+		System.arraycopy(inCoordinates, 0, getClosedFormSource(), 0, basisSize);
+		expandCoordinates();
+	}
+
+	private double[] getClosedFormSource()
+	{
+		if(closedFormSource == null)
+		{
+			closedFormSource = new double[cellCount];
+			closedFormDest = new double[cellCount];
+			contrastVectors = new double[attributeCount][snpStateCount - 1][snpStateCount];
+		}
+		return closedFormSource;
+	}
+
+	// Expand the coordinates in closedFormSource[0..basisSize-1] into the cells.
+	private void expandCoordinates()
+	{
+		int contrastCount = snpStateCount - 1;
+		double[] source;
+		double[] dest;
+		double[] swap;
+		double sum;
+		int innerCount;
+		int outerCount;
+
+		for (int i = 0; i < attributeCount; ++i)
+			calcContrastVectors(stateProbability[i], contrastVectors[i]);
+
+		// The coordinates are indexed like the cells, but with contrastCount entries along each dimension rather than snpStateCount:
+		source = closedFormSource;
+		dest = closedFormDest;
+
+		// Expand one dimension at a time from contrastCount coordinates to snpStateCount cells.
+		// Before expanding dimension d, dimensions 0..d-1 already have snpStateCount entries and the rest still have contrastCount:
+		innerCount = 1;
+		outerCount = basisSize;
+		for (int d = 0; d < attributeCount; ++d)
 		{
-			if (!cells[i].isSet)
+			double[][] contrasts = contrastVectors[d];
+			outerCount /= contrastCount;
+			for (int outer = 0; outer < outerCount; ++outer)
 			{
-				outFoundEmpty = true;
-				break;
+				for (int j = 0; j < snpStateCount; ++j)
+				{
+					int destBase = (outer * snpStateCount + j) * innerCount;
+					for (int inner = 0; inner < innerCount; ++inner)
+					{
+						sum = 0;
+						for (int k = 0; k < contrastCount; ++k)
+							sum += contrasts[k][j] * source[(outer * contrastCount + k) * innerCount + inner];
+						dest[destBase + inner] = sum;
+					}
+				}
 			}
+			innerCount *= snpStateCount;
+			swap = source;
+			source = dest;
+			dest = swap;
 		}
-		return outFoundEmpty;
+
+		for (int i = 0; i < cellCount; ++i)
+			setPenetranceValue(i, source[i]);
+		basisNext = basisSize;
+		cellsPicked = 0;
 	}
 
-	// Return the count of any cells not set yet
-	public int countRemainingEmptyCells()
+	// Fill outContrastVectors with an orthonormal basis for the vectors orthogonal to inProbabilities, by Gram-Schmidt:
+	// start from inProbabilities itself and orthogonalize each of the unit vectors against the ones found so far.
+	private static void calcContrastVectors(double[] inProbabilities, double[][] outContrastVectors)
 	{
-		int outEmpty;
+		int stateCount = inProbabilities.length;
+		double[][] found = new double[stateCount][];
+		int foundCount = 0;
+		double norm;
 
-		outEmpty = 0;
-		for (int i = 0; i < cellCount; ++i)
+		found[foundCount++] = normalizeVector(Arrays.copyOf(inProbabilities, stateCount));
+		for (int j = 0; j < stateCount && foundCount < stateCount; ++j)
 		{
-			if (!cells[i].isSet)
-				++outEmpty;
+			double[] v = new double[stateCount];
+			v[j] = 1;
+			for (int f = 0; f < foundCount; ++f)
+			{
+				double dot = found[f][j];
+				for (int k = 0; k < stateCount; ++k)
+					v[k] -= dot * found[f][k];
+			}
+			norm = 0;
+			for (int k = 0; k < stateCount; ++k)
+				norm += v[k] * v[k];
+			if (norm > kErrorLimit * kErrorLimit)
+				found[foundCount++] = normalizeVector(v);
 		}
-		return outEmpty;
+		assert (foundCount == stateCount);
+		for (int f = 1; f < stateCount; ++f)
+			System.arraycopy(found[f], 0, outContrastVectors[f - 1], 0, stateCount);
+	}
+
+	private static double[] normalizeVector(double[] ioVector)
+	{
+		double norm = 0;
+		for (double x : ioVector)
+			norm += x * x;
+		norm = Math.sqrt(norm);
+		for (int i = 0; i < ioVector.length; ++i)
+			ioVector[i] /= norm;
+		return ioVector;
+	}
+
+	// Return true if there are any cells not set yet, false otherwise.
+	private boolean emptyCellRemaining()
+	{
+		return (emptyCellCount > 0);
+	}
+
+	// Return the count of any cells not set yet
+	public int countRemainingEmptyCells()
+	{
+		return emptyCellCount;
 	}
 
 	// // Return true if there are any cells not set yet, false otherwise.
@@ -626,10 +745,9 @@ public class PenetranceTable implements Cloneable
 	// return outFoundEmpty;
 	// }
 
-	// inPreviousAttempts can be used for randomization if we want determinism
-	private CellId pickNextEmptyCell(Random inRandom, CellId outCellId) throws Exception
+	// Return the master-index of an empty cell, chosen uniformly at random (unless the point method is in use).
+	private int pickNextEmptyCell(Random inRandom) throws Exception
 	{
-		int attempts;
 		int masterIndex;
 
 		// // For testing only -- use the block from 0 to snpStateCount - 2 (ie,
@@ -660,13 +778,15 @@ public class PenetranceTable implements Cloneable
 		if(usePointMethod)
 		{
 			boolean found = false;
+			masterIndex = kWhichPenetranceCellNone;
 			while(nextMasterCellIdForPointMethod < cellCount)
 			{
-				masterIndexToCellId(nextMasterCellIdForPointMethod++, outCellId);
-				if(!blockedOutCellForPointMethod.matchesOnAnyDimension(outCellId))
+				masterIndexToCellId(nextMasterCellIdForPointMethod++, pickedCellId);
+				if(!blockedOutCellForPointMethod.matchesOnAnyDimension(pickedCellId))
 				{
 					// The point we're returning is not on one of the blocked-out staves, so it should not be set yet:
-					assert !cells[nextMasterCellIdForPointMethod - 1].isSet;
+					masterIndex = nextMasterCellIdForPointMethod - 1;
+					assert !cellIsSet[masterIndex];
 					found = true;
 					break;
 				}
@@ -676,18 +796,11 @@ public class PenetranceTable implements Cloneable
 		}
 		else
 		{
-			attempts = 0;
-			while (true)
-			{
-				masterIndex = inRandom.nextInt(cellCount);
-				if(!cells[masterIndex].isSet)
-					break;
-				if(attempts > 100)
-					throw new Exception("Unable to find an empty cell that works");
-			}
-			masterIndexToCellId(masterIndex, outCellId);
+			if(emptyCellCount == 0)
+				throw new Exception("Unable to find an empty cell that works");
+			masterIndex = emptyCells[inRandom.nextInt(emptyCellCount)];
 		}
-		return outCellId;
+		return masterIndex;
 	}
 
 	// private double pickRandomPenetranceValue(CellId inCellId)
@@ -698,99 +811,112 @@ public class PenetranceTable implements Cloneable
 	// return penetranceBasisValue[penetranceBasisNext++];
 	// }
 
-	// Returns true if the value at inCellId causes a conflict, false otherwise.
-	private ErrorState setRandomPenetranceValueAndPropagateIt(CellId inCellId) throws Exception
+	// Returns true if the value at inMasterIndex causes a conflict, false otherwise.
+	// The cells whose values are forced by the ones already set are queued in the pendingCells ring buffer;
+	// cellIsPending keeps any cell from being queued more than once.
+	private ErrorState setRandomPenetranceValueAndPropagateIt(int inMasterIndex) throws Exception
 	{
-		double penetranceValue;
 		ErrorState outError = ErrorState.None;
 		int filledCells;
-		PenetranceCellWithId penetranceCell;
-		PenetranceCellWithId currPenetranceCell;
-		CellId tempCellId = new CellId(attributeCount);
-		CellId emptyCellId = new CellId(attributeCount);
+		int currentCell;
+		int rowStart;
+		int emptyCell;
 		double sum;
 
-		penetranceCell = new PenetranceCellWithId(inCellId);
-		penetranceCell.isBasisElement = true;
-		pendingCellsToSet.add(penetranceCell);
-		QUEUE: while ((currPenetranceCell = pendingCellsToSet.poll()) != null)
+		assert (!cellIsSet[inMasterIndex]);
+		if (basisNext >= basisSize)
+			return ErrorState.Ambiguous;
+		saveBasisCell(inMasterIndex, basisNext++);
+
+		pendingCellsHead = 0;
+		pendingCellsCount = 0;
+		currentCell = inMasterIndex;
+		QUEUE: while (true)
 		{
-			// TODO: If we add a penetranceIsPending global array, we can avoid
-			// putting redundant entries in the queue in the first place.
-			if (!getPenetranceIsSet(currPenetranceCell.cellId))
+			boolean foundError = false;
+			// Check each "row" in the snpCount-dimensional hypercube that goes through currentCell:
+			for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension)
 			{
-				assert (currPenetranceCell.isSet || currPenetranceCell.isBasisElement);
-				if (currPenetranceCell.isBasisElement)
-				{
-					if (basisNext >= basisSize)
-					{
-						outError = ErrorState.Ambiguous;
-						break QUEUE;
-					}
-					currPenetranceCell.setValue(basis[basisNext].value);
-					currPenetranceCell.setWhichBasisElement(basisNext);
-					++basisNext;
-				}
-				savePenetranceCell(currPenetranceCell);
-				boolean foundError = false;
-				// Check each "row" in the snpCount-dimensional hypercube that goes through currPenetranceCell.cellId:
-				for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension)
+				// For each cell in the current "row" of the hypercube, count how many cells are set:
+				rowStart = getRowStart(currentCell, whichDimension);
+				filledCells = countFilledCells(rowStart, whichDimension);
+				// If the current row is all filled in, then check for a conflict:
+				if (filledCells == snpStateCount)
 				{
-					// For each cell in the current "row" of the hypercube, count how many cells are set:
-					filledCells = countFilledCells(currPenetranceCell.cellId, whichDimension, emptyCellId);
-					// If the current row is all filled in, then check for a conflict:
-					if (filledCells == snpStateCount)
+					sum = calculateWeightedSumOfSetPenetranceValues(rowStart, whichDimension);
+					if (Math.abs(sum - kPenetranceSum) > kErrorLimit)
 					{
-						sum = calculateWeightedSumOfSetPenetranceValues(currPenetranceCell.cellId, whichDimension);
-						if (Math.abs(sum - kPenetranceSum) > kErrorLimit)
+						foundError = true;
+						// Don't bother trying to fix conflicts, it only works a small fraction of the time.
+//						if (!fixConflict(masterIndexToCellId(currentCell, new CellId(attributeCount)), whichDimension))
 						{
-							foundError = true;
-							// Don't bother trying to fix conflicts, it only works a small fraction of the time.
-//							if (!fixConflict(currPenetranceCell, whichDimension))
-							{
-								outError = ErrorState.Conflict;
-								break QUEUE;
-							}
+							outError = ErrorState.Conflict;
+							break QUEUE;
 						}
 					}
+				}
 
-					// If there are snpStateCount - 1 cells set in the current row,
-					// then we can propagate to the remaining empty cell:
-					if (filledCells == snpStateCount - 1)
-					{
-						assert (!getPenetranceIsSet(emptyCellId));
-						pendingCellsToSet.add(new PenetranceCellWithId(emptyCellId, calculateForcedPenetranceValue(emptyCellId, whichDimension)));
-					}
+				// If there are snpStateCount - 1 cells set in the current row,
+				// then we can propagate to the remaining empty cell, unless it's already waiting to be set:
+				if (filledCells == snpStateCount - 1)
+				{
+					emptyCell = findEmptyCellInRow(rowStart, whichDimension);
+					if (!cellIsPending[emptyCell])
+						addPendingCell(emptyCell, calculateForcedPenetranceValue(emptyCell, rowStart, whichDimension));
 				}
-				if(foundError)
+			}
+			if(foundError)
+			{
+				if(!checkRowSums(0))
 				{
-					if(!checkRowSums(0))
-					{
-						// fixConflict said that it succeeded, but it actually failed:
-//						System.out.println("Failed to fix a conflict, but thought we succeeded!");
-						++fixedConflictUnsuccessfully;
-						outError = ErrorState.Conflict;
-						break QUEUE;
-					}
-					else
-					{
-						++fixedConflictSuccessfully;
-//						System.out.println("Successfully fixed a conflict");
-					}
+					// fixConflict said that it succeeded, but it actually failed:
+//					System.out.println("Failed to fix a conflict, but thought we succeeded!");
+					++fixedConflictUnsuccessfully;
+					outError = ErrorState.Conflict;
+					break QUEUE;
+				}
+				else
+				{
+					++fixedConflictSuccessfully;
+//					System.out.println("Successfully fixed a conflict");
 				}
-
 			}
 //			checkRowSums(0);
+
+			if (pendingCellsCount == 0)
+				break;
+			currentCell = pendingCells[pendingCellsHead];
+			cellIsPending[currentCell] = false;
+			setPenetranceValue(currentCell, pendingCellValues[pendingCellsHead]);
+			pendingCellsHead = (pendingCellsHead + 1) % cellCount;
+			--pendingCellsCount;
+		}
+		// If we stopped early, then forget about any cells that are still waiting to be set:
+		for (; pendingCellsCount > 0; --pendingCellsCount)
+		{
+			cellIsPending[pendingCells[pendingCellsHead]] = false;
+			pendingCellsHead = (pendingCellsHead + 1) % cellCount;
 		}
 		return outError;
 	}
 
-	private boolean fixConflict(PenetranceCellWithId inCell, int inWhichDimension) throws Exception
+	private void addPendingCell(int inMasterIndex, double inValue)
+	{
+		// Each cell is queued at most once before it is set, so the queue never holds more than cellCount entries:
+		assert (pendingCellsCount < cellCount);
+		int tail = (pendingCellsHead + pendingCellsCount) % cellCount;
+		pendingCells[tail] = inMasterIndex;
+		pendingCellValues[tail] = inValue;
+		cellIsPending[inMasterIndex] = true;
+		++pendingCellsCount;
+	}
+
+	private boolean fixConflict(CellId inCellId, int inWhichDimension) throws Exception
 	{
 		boolean outSuccess;
 		int conflictingBasisElement;
-		CellId tempCellId = new CellId(inCell.cellId);
-		CellId cellContainingBasisElement = new CellId(inCell.cellId);
+		CellId tempCellId = new CellId(inCellId);
+		CellId cellContainingBasisElement = new CellId(inCellId);
 		BasisCell basisCell;
 		double newValue;
 		CellId otherBasisElement;
@@ -892,19 +1018,106 @@ public class PenetranceTable implements Cloneable
 		adjustHeritability();
 	}
 	
+	// Equivalent to scaleToUnitInterval(), adjustPrevalence() and adjustHeritability() in sequence, but done as a single affine map.
+	// Each of those steps is an affine rescale of all the cells, so their composition is too; its slope and intercept
+	// follow from the min, max, weighted mean and weighted variance of the unnormalized cells, which are gathered in one pass.
+	// If inHeritabilityTolerance >= 0, the table is also rejected when the heritability before the final step
+	// isn't within that relative tolerance of desiredHeritability, as generatePenetranceTables() does.
+	// The cells are left untouched if normalization isn't possible.
+	public void normalizeFused(double inHeritabilityTolerance)
+	{
+		double min, max;
+		double prob, value;
+		double sumProb, sumValue, sumSquares;
+		double mean, variance;
+		double slope, intercept;
+		double startPrevalence, newPrevalence;
+		double scale, offset;
+		double herit, factor;
+
+		max = cellValues[0];
+		min = cellValues[0];
+		sumProb = 0;
+		sumValue = 0;
+		sumSquares = 0;
+		for (int i = 0; i < cellCount; ++i)
+		{
+			value = cellValues[i];
+			if (max < value)
+				max = value;
+			if (min > value)
+				min = value;
+			prob = cellProbabilities[i];
+			sumProb += prob;
+			sumValue += prob * value;
+			sumSquares += prob * value * value;
+		}
+		mean = sumValue;
+		variance = sumSquares - 2 * mean * sumValue + mean * mean * sumProb;
+
+		// scaleToUnitInterval(): min maps to 0 and max maps to 1, unless the assumed prevalence has to be capped at kValueMax.
+		startPrevalence = min / (min - max);
+		if(startPrevalence > kValueMax)
+			startPrevalence = kValueMax;
+		slope = - startPrevalence / min;
+		intercept = startPrevalence;
+
+		// adjustPrevalence(): the scaling is chosen from the assumed prevalence, as it is there.
+		if(desiredPrevalence != null && desiredPrevalence != startPrevalence)
+		{
+			scale = 1;
+			offset = 0;
+			if(desiredPrevalence < startPrevalence)
+			{
+				scale = desiredPrevalence / startPrevalence;
+			}
+			else if(desiredPrevalence > startPrevalence)
+			{
+				scale = (1 - desiredPrevalence) / (1 - startPrevalence);
+				offset = (desiredPrevalence - startPrevalence) / (1 - startPrevalence);
+			}
+			slope *= scale;
+			intercept = scale * intercept + offset;
+		}
+		newPrevalence = slope * mean + intercept;
+
+		// adjustHeritability(): shrink the cells toward the prevalence until the heritability is the desired one.
+		herit = slope * slope * variance / (newPrevalence * (1 - newPrevalence));
+		factor = Math.sqrt(desiredHeritability / herit);
+		if(factor > 1.0D)
+			normalized = false;
+		else if(inHeritabilityTolerance >= 0 && Math.abs((herit - desiredHeritability) / desiredHeritability) >= inHeritabilityTolerance)
+			normalized = false;
+		else
+		{
+			slope *= factor;
+			intercept = factor * intercept + newPrevalence * (1 - factor);
+			for (int i = 0; i < cellCount; ++i)
+			{
+				cellValues[i] = slope * cellValues[i] + intercept;
+				assert(-kErrorLimit < cellValues[i] && cellValues[i] < 1F + kErrorLimit);
+			}
+			// Sets prevalence, actualHeritability, edm and oddsRatio:
+			calcAndSetMetrics();
+			assert Math.abs(prevalence - newPrevalence) < kErrorLimit;
+			assert Math.abs(actualHeritability - desiredHeritability) < kErrorLimit;
+			normalized = true;
+		}
+	}
+
 	public void scaleToUnitInterval()
 	{
 		double		min, max;
 		double		slope;
 		
-		max = cells[0].getValue();
-		min = cells[0].getValue();
-		for (PenetranceCell c : cells)
+		max = cellValues[0];
+		min = cellValues[0];
+		for (double v : cellValues)
 		{
-			if (max < c.getValue())
-				max = c.getValue();
-			if (min > c.getValue())
-				min = c.getValue();
+			if (max < v)
+				max = v;
+			if (min > v)
+				min = v;
 		}
 		// At this point, min must be < 0 and max must be > 0, from the way the penetrance table was constructed.
 		// We want slope * min + kValue = 0
@@ -915,8 +1128,8 @@ public class PenetranceTable implements Cloneable
 		if(prevalence > kValueMax)
 			prevalence = kValueMax;
 		slope = - prevalence / min;
-		for (PenetranceCell c : cells)
-			c.setValue(slope * c.getValue() + prevalence);
+		for (int i = 0; i < cellCount; ++i)
+			cellValues[i] = slope * cellValues[i] + prevalence;
 		// The unnormalized penetrance table was constructed to have a weighted average == 0,
 		// so the new penetrance table has a weighted average == prevalence.
 	}
@@ -936,11 +1149,11 @@ public class PenetranceTable implements Cloneable
 				scale = (1 - desiredPrevalence) / (1 - prevalence);
 				offset = (desiredPrevalence - prevalence) / (1 - prevalence);
 			}
-			for (PenetranceCell c : cells)
+			for (int i = 0; i < cellCount; ++i)
 			{
-				c.setValue(scale * c.getValue() + offset);
-//				System.out.println(c.getValue());
-				assert(-kErrorLimit < c.getValue() && c.getValue() < 1F + kErrorLimit);
+				cellValues[i] = scale * cellValues[i] + offset;
+//				System.out.println(cellValues[i]);
+				assert(-kErrorLimit < cellValues[i] && cellValues[i] < 1F + kErrorLimit);
 			}
 			calcAndSetPrevalence();
 			assert Math.abs(prevalence - desiredPrevalence) < kErrorLimit;
@@ -961,18 +1174,14 @@ public class PenetranceTable implements Cloneable
 		else
 		{
 			success = true;
-			for (PenetranceCell c : cells)
-				c.setValue(factor * c.getValue() + prevalence * (1 - factor));		// The intercept allows us to preserve the value of K and makes the heritability-scaling work.
+			for (int i = 0; i < cellCount; ++i)
+				cellValues[i] = factor * cellValues[i] + prevalence * (1 - factor);		// The intercept allows us to preserve the value of K and makes the heritability-scaling work.
 			assert Math.abs(calcPrevalence() - prevalence) < kErrorLimit;
-			calcAndSetHeritability();
+			// Sets prevalence, actualHeritability, edm and oddsRatio:
+			calcAndSetMetrics();
 //			System.out.println("factor, old herit, new herit, desired herit:\t" + factor + "\t " + herit + "\t " + actualHeritability + "\t " + desiredHeritability);
 			assert Math.abs(actualHeritability - desiredHeritability) < kErrorLimit;
 		}
-		if(success)
-		{
-			edm = calcEdm();
-			oddsRatio = calcOddsRatio();
-		}
 		normalized = success;
 	}
 	
@@ -985,17 +1194,67 @@ public class PenetranceTable implements Cloneable
 	private double calcPrevalence()
 	{
 		double outPrevalence;
-		double prob;
-		CellId cellId = new CellId(attributeCount);
 		
 		outPrevalence = 0;
+		for(int i = 0; i < cellCount; ++i)
+			outPrevalence += cellProbabilities[i] * cellValues[i];
+		return outPrevalence;
+	}
+	
+	// Calculate the prevalence, heritability, EDM and odds ratio all at once:
+	// one pass over the cells for the prevalence, and a second pass for the others, which depend on it.
+	public Metrics calcMetrics(Metrics outMetrics)
+	{
+		double prev;
+		double prob;
+		double diff;
+		double value;
+		double sumHerit, sumEdm;
+		double sumTP, sumTN, sumFP, sumFN;
+		double kProduct;
+		
+		prev = calcPrevalence();
+		sumHerit = 0;
+		sumEdm = 0;
+		sumTP = 0;
+		sumTN = 0;
+		sumFP = 0;
+		sumFN = 0;
 		for(int i = 0; i < cellCount; ++i)
 		{
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			outPrevalence += prob * cells[i].getValue();
+			prob = cellProbabilities[i];
+			value = cellValues[i];
+			diff = value - prev;
+			sumHerit += prob * diff * diff;
+			sumEdm += prob * prob * diff * diff;
+			if(value >= prev)
+			{
+				sumTP += prob * value;
+				sumFP += prob * (1 - value);
+			}
+			else
+			{
+				sumTN += prob * (1 - value);
+				sumFN += prob * value;
+			}
 		}
-		return outPrevalence;
+		kProduct = prev * (1 - prev);
+		outMetrics.prevalence = prev;
+		outMetrics.heritability = sumHerit / kProduct;
+		outMetrics.edm = sumEdm / (2 * kProduct * kProduct);
+		outMetrics.oddsRatio = sumTP * sumTN / (sumFN * sumFP);
+		return outMetrics;
+	}
+	
+	// Set prevalence, actualHeritability, edm and oddsRatio from a single calcMetrics().
+	public Metrics calcAndSetMetrics()
+	{
+		calcMetrics(scratchMetrics);
+		prevalence = scratchMetrics.prevalence;
+		actualHeritability = scratchMetrics.heritability;
+		edm = scratchMetrics.edm;
+		oddsRatio = scratchMetrics.oddsRatio;
+		return scratchMetrics;
 	}
 	
 	// outMarginalPenetrances[whichLocus][whichAlleleValue]
@@ -1023,7 +1282,6 @@ public class PenetranceTable implements Cloneable
 //				System.out.println("-------------------");
 //				System.out.println();
 				double prevalence;
-				double prob;
 				
 				prevalence = 0;
 				// iterate over all of the cells in the table,
@@ -1035,15 +1293,14 @@ public class PenetranceTable implements Cloneable
 //					if(i % 9 == 0)
 //						System.out.println();
 //					if(cellId.getIndex(whichLocus) == whichAlleleValue)
-//						System.out.print(nf.format(cells[i].getValue()) + "\t");
+//						System.out.print(nf.format(cellValues[i]) + "\t");
 //					else
 //						System.out.print("-" + "\t");
 					// and if the current cell matches whichLocus and whichAlleleValue,
 					if(cellId.getIndex(whichLocus) == whichAlleleValue)
 					{
 						// then add it the cumulative prevalence value:
-						prob = getProbabilityProduct(cellId);
-						prevalence += prob * cells[i].getValue();
+						prevalence += cellProbabilities[i] * cellValues[i];
 					}
 				}
 				outMarginalPenetrances[whichLocus][whichAlleleValue] = prevalence;
@@ -1085,7 +1342,7 @@ public class PenetranceTable implements Cloneable
 				System.out.println();
 			if(i % 9 == 0)
 				System.out.println();
-			System.out.print(cells[i].getValue() + "\t");
+			System.out.print(cellValues[i] + "\t");
 		}
 	}
 	
@@ -1095,25 +1352,12 @@ public class PenetranceTable implements Cloneable
 		return actualHeritability;
 	}
 	
+	// Like the other single-statistic calculations, this also sets prevalence.
 	public double calcHeritability()
 	{
-		double sum;
-		double outHeritability;
-		double prob;
-		double diff;
-		CellId cellId = new CellId(attributeCount);
-		
-		calcAndSetPrevalence();
-		sum = 0;
-		for(int i = 0; i < cellCount; ++i)
-		{
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			diff = cells[i].getValue() - prevalence;
-			sum += prob * diff * diff;
-		}
-		outHeritability = sum / (prevalence * (1 - prevalence));
-		return outHeritability;
+		calcMetrics(scratchMetrics);
+		prevalence = scratchMetrics.prevalence;
+		return scratchMetrics.heritability;
 	}
 	
 	public double getQuantileScore(boolean inUseOddsRatio)
@@ -1132,25 +1376,9 @@ public class PenetranceTable implements Cloneable
 	
 	public double calcEdm()
 	{
-		double sum;
-		double outRas;
-		double prob;
-		double diff;
-		double kProduct;
-		CellId cellId = new CellId(attributeCount);
-		
-		calcAndSetPrevalence();
-		sum = 0;
-		for(int i = 0; i < cellCount; ++i)
-		{
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			diff = cells[i].getValue() - prevalence;
-			sum += prob * prob * diff * diff;
-		}
-		kProduct = prevalence * (1 - prevalence);
-		outRas = sum / (2 * kProduct * kProduct);
-		return outRas;
+		calcMetrics(scratchMetrics);
+		prevalence = scratchMetrics.prevalence;
+		return scratchMetrics.edm;
 	}
 	
 	public double calcAndSetOddsRatio()
@@ -1161,70 +1389,71 @@ public class PenetranceTable implements Cloneable
 	
 	public double calcOddsRatio()
 	{
-		double sumTP, sumTN, sumFP, sumFN;
-		double outOddsRatio;
-		double prob;
-		double prev;
-		CellId cellId = new CellId(attributeCount);
-		
-		calcAndSetPrevalence();
-		sumTP = 0;
-		sumTN = 0;
-		sumFP = 0;
-		sumFN = 0;
-		for(int i = 0; i < cellCount; ++i)
-		{
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			prev = cells[i].getValue();
-			if(prev >= prevalence)
-			{
-				sumTP += prob * prev;
-				sumFP += prob * (1 - prev);
-			}
-			else
-			{
-				sumTN += prob * (1 - prev);
-				sumFN += prob * prev;
-			}
-		}
-		outOddsRatio = sumTP * sumTN / (sumFN * sumFP);
-		return outOddsRatio;
+		calcMetrics(scratchMetrics);
+		prevalence = scratchMetrics.prevalence;
+		return scratchMetrics.oddsRatio;
 	}
 	
+	// Sets rowSumsValid, and rowSumDeviation to the largest deviation in the table. The check stops at the first violation,
+	// so a table that fails is checked again in full, to find its largest deviation.
 	public void checkRowSums()
 	{
 		rowSumsValid = checkRowSums(prevalence);
+		if(!rowSumsValid)
+			checkRowSums(prevalence, false);
 	}
 	
 	public boolean checkRowSums(double inDesiredRowSum)
+	{
+		return checkRowSums(inDesiredRowSum, true);
+	}
+	
+	// Check that every full row along every dimension has a weighted sum of inDesiredRowSum; rows with empty cells are skipped.
+	// Each row is visited once: the rows along a dimension start at the master-indices whose index along that dimension is 0,
+	// which are the blocks of dimensionStrides[whichDimension] consecutive master-indices, snpStateCount strides apart.
+	// The largest deviation seen is saved in rowSumDeviation; if inStopAtFirstViolation is false, all rows are checked,
+	// so that it is the largest deviation in the table, and otherwise it's only the largest up to the first violation.
+	public boolean checkRowSums(double inDesiredRowSum, boolean inStopAtFirstViolation)
 	{
 		boolean success = true;
-		CellId cellId = new CellId(attributeCount);
-		double sum;
+		int stride;
+		int blockSize;
+		int rowStart;
+		double deviation;
 		
+		rowSumDeviation = 0;
+		ROWS:
 		for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension)
 		{
-			// This is a little redundant, but only by a factor of snpStateCount --
-			// and it's easier to do than the non-redundant method.
-			for(int i = 0; i < cellCount; ++i)
+			stride = dimensionStrides[whichDimension];
+			blockSize = stride * snpStateCount;
+			for (int blockStart = 0; blockStart < cellCount; blockStart += blockSize)
 			{
-				masterIndexToCellId(i, cellId);
-				if(allValuesSetInRow(cellId, whichDimension))
+				for (rowStart = blockStart; rowStart < blockStart + stride; ++rowStart)
 				{
-					sum = calculateWeightedSumOfSetPenetranceValues(cellId, whichDimension);
-					if (Math.abs(sum - inDesiredRowSum) > kErrorLimit)
+					if(countFilledCells(rowStart, whichDimension) == snpStateCount)
 					{
-						success = false;
-//						System.out.println("* * * ERROR * * -- Incorrect row-sum along dimension " + whichDimension + " from cell " + i  + "; correct value is " + prevalence + ", actual value is " + sum);
-//						printIn3D();
-//						sum = calculateWeightedSumOfSetPenetranceValues(cellId, whichDimension);		// For debugging only
+						deviation = Math.abs(calculateWeightedSumOfSetPenetranceValues(rowStart, whichDimension) - inDesiredRowSum);
+						if(deviation > rowSumDeviation)
+							rowSumDeviation = deviation;
+						if (deviation > kErrorLimit)
+						{
+							success = false;
+//							System.out.println("* * * ERROR * * -- Incorrect row-sum along dimension " + whichDimension + " from cell " + rowStart  + "; correct value is " + inDesiredRowSum + ", deviation is " + deviation);
+							if(inStopAtFirstViolation)
+								break ROWS;
+						}
 					}
 				}
 			}
 		}
 		return success;
 	}
+	
+	public double getRowSumDeviation()
+	{
+		return rowSumDeviation;
+	}
 
 	// Calculate caseIntervals such that the length of the interval from caseIntervals[i-1] to caseIntervals[i]
 	// == the probability that a random case is in the ith cell of the penetrance table; similarly for controls.
@@ -1232,11 +1461,9 @@ public class PenetranceTable implements Cloneable
 	{
 		double prob;
 		double penetrance;
-		CellId cellId;
 		double sumCaseFractions, sumControlFractions;
 		// caseIntervals[i] == the right edge of the ith probability-interval for cases; similarly for controls
 		
-		cellId = new CellId(attributeCount);
 		sumCaseFractions = 0;
 		sumControlFractions = 0;
 		caseIntervals = new double[cellCount];
@@ -1244,9 +1471,8 @@ public class PenetranceTable implements Cloneable
 		// Sum up all the case-fractions, storing the partial case-fractions to the caseIntervals array; do the same with controls:
 		for(int i = 0; i < cellCount; ++i)
 		{
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			penetrance = getPenetranceValue(cellId);
+			prob = cellProbabilities[i];
+			penetrance = cellValues[i];
 			
 			sumCaseFractions += prob * penetrance;
 			sumControlFractions += prob * (1 - penetrance);
@@ -1395,7 +1621,7 @@ public class PenetranceTable implements Cloneable
 				if(rowSumsValid)
 					outputStream.println("Table has passed the row-sum test.");
 				else
-					outputStream.println("Table has FAILED the row-sum test.");
+					outputStream.println("Table has FAILED the row-sum test (largest deviation " + rowSumDeviation + ").");
 			}
 			else
 				outputStream.println("Unable to normalize table.");
@@ -1435,7 +1661,7 @@ public class PenetranceTable implements Cloneable
 				if(i % (snpStateCount * snpStateCount) == 0)
 					outputStream.println();									// Print a blank line between squares
 			}
-			outputStream.print(cells[i].getValue());
+			outputStream.print(cellValues[i]);
 			if((i + 1) % snpStateCount != 0)
 				outputStream.print(delimiter);
 		}
@@ -1607,73 +1833,99 @@ public class PenetranceTable implements Cloneable
 		}
 	}
 
+	// A "row" of the hypercube along inWhichDimension is the set of snpStateCount cells whose master-indices are
+	// rowStart, rowStart + dimensionStrides[inWhichDimension], rowStart + 2 * dimensionStrides[inWhichDimension], ...
+	// Return the master-index of the first cell in the row along inWhichDimension through inMasterIndex.
+	private int getRowStart(int inMasterIndex, int inWhichDimension)
+	{
+		int stride = dimensionStrides[inWhichDimension];
+		return inMasterIndex - ((inMasterIndex / stride) % snpStateCount) * stride;
+	}
+
 	// For each cell in the "row" specified by inWhichDimension of the hypercube, return how many cells are set.
 	// If there is at least one empty cell, outEmptyCellId returns one of them.
 	private int countFilledCells(CellId inWhichCell, int inWhichDimension, CellId outEmptyCellId)
+	{
+		int rowStart = getRowStart(cellIdToMasterIndex(inWhichCell), inWhichDimension);
+		int filledCells = countFilledCells(rowStart, inWhichDimension);
+		if (outEmptyCellId != null && filledCells < snpStateCount)
+			masterIndexToCellId(findEmptyCellInRow(rowStart, inWhichDimension), outEmptyCellId);
+		return filledCells;
+	}
+
+	// For each cell in the row starting at inRowStart along inWhichDimension, return how many cells are set.
+	private int countFilledCells(int inRowStart, int inWhichDimension)
 	{
 		int filledCells;
-		CellId tempCellId = new CellId(inWhichCell);
+		int stride = dimensionStrides[inWhichDimension];
+		int index = inRowStart;
 
 		filledCells = 0;
-		for (int j = 0; j < snpStateCount; ++j)
+		for (int j = 0; j < snpStateCount; ++j, index += stride)
 		{
-			tempCellId.setIndex(inWhichDimension, j);
-			if (getPenetranceIsSet(tempCellId))
+			if (cellIsSet[index])
 				++filledCells;
-			else
-			{
-				if (outEmptyCellId != null)
-					outEmptyCellId.copyFrom(tempCellId);
-			}
 		}
 		return filledCells;
 	}
 
+	// Return the master-index of the last empty cell in the row starting at inRowStart along inWhichDimension,
+	// or kWhichPenetranceCellNone if the row is full.
+	private int findEmptyCellInRow(int inRowStart, int inWhichDimension)
+	{
+		int outEmptyCell = kWhichPenetranceCellNone;
+		int stride = dimensionStrides[inWhichDimension];
+		int index = inRowStart;
+
+		for (int j = 0; j < snpStateCount; ++j, index += stride)
+		{
+			if (!cellIsSet[index])
+				outEmptyCell = index;
+		}
+		return outEmptyCell;
+	}
+
 	// All of the cells in the row through inCellId along inWhichDimension are filled,
 	// so we can use them to calculate the value at inCellId.
 	private double calculateForcedPenetranceValue(CellId inCellId, int inWhichDimension)
+	{
+		int masterIndex = cellIdToMasterIndex(inCellId);
+		return calculateForcedPenetranceValue(masterIndex, getRowStart(masterIndex, inWhichDimension), inWhichDimension);
+	}
+
+	// All of the other cells in the row starting at inRowStart along inWhichDimension are filled,
+	// so we can use them to calculate the value at inMasterIndex.
+	private double calculateForcedPenetranceValue(int inMasterIndex, int inRowStart, int inWhichDimension)
 	{
 		double sum;
 		double outValue;
 		int whereIsCellAlongDimension;
 
-		whereIsCellAlongDimension = inCellId.getIndex(inWhichDimension);
-		sum = calculateWeightedSumOfSetPenetranceValues(inCellId, inWhichDimension);
+		whereIsCellAlongDimension = (inMasterIndex - inRowStart) / dimensionStrides[inWhichDimension];
+		sum = calculateWeightedSumOfSetPenetranceValues(inRowStart, inWhichDimension);
 		outValue = (kPenetranceSum - sum) / stateProbability[inWhichDimension][whereIsCellAlongDimension];
 
 		// For debugging only:
-		assert (countFilledCells(inCellId, inWhichDimension, null) == snpStateCount - 1);
-		setPenetranceValue(inCellId, outValue);
-		// printRow(inCellId, inWhichDimension); System.out.println();
-		sum = calculateWeightedSumOfSetPenetranceValues(inCellId, inWhichDimension);
-		assert ((Math.abs(sum - kPenetranceSum) < kErrorLimit));
-		clearPenetranceValue(inCellId);
+		assert (countFilledCells(inRowStart, inWhichDimension) == snpStateCount - 1);
+		assert (!cellIsSet[inMasterIndex]);
+		assert ((Math.abs(sum + stateProbability[inWhichDimension][whereIsCellAlongDimension] * outValue - kPenetranceSum) < kErrorLimit));
 
 		return outValue;
 	}
 
-	// Return true iff all the penetrance-values are set in the row along
-	// inWhichDimension through the cell specified by inCellId.
-	// inWhichDimension is the same as which-snp
-	private boolean allValuesSetInRow(CellId inCellId, int inWhichDimension)
-	{
-		return (countFilledCells(inCellId, inWhichDimension, null) == snpStateCount);
-	}
-
-	// Return the sum of the set penetrance-values in the row along
-	// inWhichDimension through the cell specified by inCellId.
-	// inWhichDimension is the same as which-snp
-	private double calculateWeightedSumOfSetPenetranceValues(CellId inCellId, int inWhichDimension)
+	// Return the sum of the set penetrance-values in the row starting at inRowStart along inWhichDimension.
+	private double calculateWeightedSumOfSetPenetranceValues(int inRowStart, int inWhichDimension)
 	{
 		double sum;
-		CellId tempCellId = new CellId(inCellId);
+		double[] probabilities = stateProbability[inWhichDimension];
+		int stride = dimensionStrides[inWhichDimension];
+		int index = inRowStart;
 
 		sum = 0;
-		for (int i = 0; i < snpStateCount; ++i)
+		for (int i = 0; i < snpStateCount; ++i, index += stride)
 		{
-			tempCellId.setIndex(inWhichDimension, i);
-			if (getPenetranceIsSet(tempCellId))
-				sum += stateProbability[inWhichDimension][i] * getPenetranceValue(tempCellId);
+			if (cellIsSet[index])
+				sum += probabilities[i] * cellValues[index];
 		}
 		return sum;
 	}
@@ -1688,6 +1940,11 @@ public class PenetranceTable implements Cloneable
 		return product;
 	}
 	
+	public double getProbabilityProduct(int inMasterIndex)
+	{
+		return cellProbabilities[inMasterIndex];
+	}
+	
 	public int cellIdToMasterIndex(CellId inCellId)
 	{
 		return inCellId.toMasterIndex(snpStateCount, attributeCount);
@@ -1701,46 +1958,72 @@ public class PenetranceTable implements Cloneable
 
 	public double getPenetranceValue(CellId inCellId)
 	{
-		int index = cellIdToMasterIndex(inCellId);
-		return cells[index].getValue();
+		return getPenetranceValue(cellIdToMasterIndex(inCellId));
 	}
 
-	public void savePenetranceCell(PenetranceCellWithId inCell)
+	public double getPenetranceValue(int inMasterIndex)
 	{
-		CellId cellId = inCell.cellId;
-		assert (!getPenetranceIsSet(cellId));
-		int index = cellIdToMasterIndex(cellId);
-		cells[index] = new PenetranceCell(inCell);
-		if (inCell.isBasisElement)
-		{
-			// if(cellIdToMasterIndex(cellId) == -1)
-			// index = -1000;
-			// System.out.println("Setting whichPenetranceCell for " +
-			// inCell.getWhichBasisElement() + " to " +
-			// cellIdToMasterIndex(cellId));
-			basis[inCell.getWhichBasisElement()].whichPenetranceCell = cellIdToMasterIndex(cellId);
-		}
+		return cellValues[inMasterIndex];
+	}
+
+	// Set the cell at inMasterIndex to the value of the given element of the basis, and link the two together.
+	private void saveBasisCell(int inMasterIndex, int inWhichBasisElement)
+	{
+		assert (!cellIsSet[inMasterIndex]);
+		cellValues[inMasterIndex] = basis[inWhichBasisElement].value;
+		markCellSet(inMasterIndex);
+		cellIsBasisElement[inMasterIndex] = true;
+		cellWhichBasisElement[inMasterIndex] = inWhichBasisElement;
+		basis[inWhichBasisElement].whichPenetranceCell = inMasterIndex;
 	}
 
 	public void setPenetranceValue(CellId inCellId, double inValue)
 	{
 //		assert (!getPenetranceIsSet(inCellId));
-		int index = cellIdToMasterIndex(inCellId);
-		cells[index].setValue(inValue);
-		cells[index].isSet = true;
+		setPenetranceValue(cellIdToMasterIndex(inCellId), inValue);
+	}
+
+	public void setPenetranceValue(int inMasterIndex, double inValue)
+	{
+		cellValues[inMasterIndex] = inValue;
+		markCellSet(inMasterIndex);
+	}
+
+	private void markCellSet(int inMasterIndex)
+	{
+		if (!cellIsSet[inMasterIndex])
+		{
+			cellIsSet[inMasterIndex] = true;
+			// Remove the cell from emptyCells by moving the last empty cell into its slot:
+			int position = emptyCellPositions[inMasterIndex];
+			int lastEmptyCell = emptyCells[--emptyCellCount];
+			emptyCells[position] = lastEmptyCell;
+			emptyCellPositions[lastEmptyCell] = position;
+		}
+	}
+
+	private void markCellEmpty(int inMasterIndex)
+	{
+		if (cellIsSet[inMasterIndex])
+		{
+			cellIsSet[inMasterIndex] = false;
+			emptyCells[emptyCellCount] = inMasterIndex;
+			emptyCellPositions[inMasterIndex] = emptyCellCount;
+			++emptyCellCount;
+		}
 	}
 
 	public void clearPenetranceValue(CellId inCellId)
 	{
 		int index = cellIdToMasterIndex(inCellId);
-		if (cells[index].isBasisElement)
+		if (cellIsBasisElement[index])
 		{
 			// Make the basis not point to the penetranceTable:
-			int whichBasisElement = cells[index].getWhichBasisElement();
+			int whichBasisElement = cellWhichBasisElement[index];
 			basis[whichBasisElement].whichPenetranceCell = kWhichPenetranceCellNone;
 		}
-		cells[index].isSet = false;
-		cells[index].isBasisElement = false; // Make the
+		markCellEmpty(index);
+		cellIsBasisElement[index] = false; // Make the
 														// penetranceTable not
 														// point to the basis
 	}
@@ -1748,24 +2031,24 @@ public class PenetranceTable implements Cloneable
 	private boolean getPenetranceIsSet(CellId inCellId)
 	{
 		int index = cellIdToMasterIndex(inCellId);
-		return cells[index].isSet;
+		return cellIsSet[index];
 	}
 
 	private boolean getIsBasisElement(CellId inCellId)
 	{
 		int index = cellIdToMasterIndex(inCellId);
-		return cells[index].isBasisElement;
+		return cellIsBasisElement[index];
 	}
 
 	private int getWhichBasisElement(CellId inCellId)
 	{
 		int index = cellIdToMasterIndex(inCellId);
-		return cells[index].whichBasisElement;
+		return cellWhichBasisElement[index];
 	}
 
 	private void setWhichBasisElement(CellId inCellId, int inWhichBasisElement)
 	{
 		int index = cellIdToMasterIndex(inCellId);
-		cells[index].whichBasisElement = inWhichBasisElement;
+		cellWhichBasisElement[index] = inWhichBasisElement;
 	}
 }		// end class PenetranceTable
@@ -3,6 +3,8 @@ package org.epistasis.snpgen.simulator;
 import java.io.*;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import javax.swing.JProgressBar;
 
@@ -18,6 +20,19 @@ public class SnpGenSimulator
 	private static final int kMajorMinor = 1;
 	private static final int kMinorMinor = 2;
 	private static final int[] kAlleleSymbols = {kMajorMajor, kMajorMinor, kMinorMinor};
+	private static final int kSearchChunkSize = 256;		// The number of tries in each chunk of a ParallelTableSearch
+	private static final double[] kStratumBasisExponents = {1, 0.5, 2, 0.25, 4};	// The strata of fillQuantileBins(); see PenetranceTable.setBasisExponent()
+	private static final int kStratumBatchSize = 64;		// The number of tries fillQuantileBins() makes in one stratum before choosing again
+	public static final double kDefaultTargetScoreTolerance = 0.001D;
+	private static final int kFeasibilityEvaluationCount = 3000;		// The number of candidates estimateMaxHeritability() tries
+	private static final long kFeasibilitySeed = 1;			// estimateMaxHeritability() has its own Random, so that it doesn't change the tables found
+	// checkModelFeasibility() only rejects a heritability this much above the estimated maximum, since the estimate is a lower bound:
+	private static final double kFeasibilityMargin = 1.05D;
+	public static final double kDefaultTryBudgetProbability = 0.95D;
+	private static final int kPilotBatchTryCount = 1000;		// estimateTryBudget() tries this many at a time,
+	private static final int kPilotMinAcceptedCount = 30;		// until this many have been accepted
+	private static final int kPilotMaxTryCount = 20000;			// or it has tried this many
+	private static final long kPilotSeed = 2;					// estimateTryBudget() has its own Random, so that it doesn't change the tables found
 	
 	private static class PenetranceTablePopulation
 	{
@@ -45,12 +60,211 @@ public class SnpGenSimulator
 		public void setMaximum(int inMax);
 		public void setValue(int inMax);
 	}
+	
+	// Where a table search puts the tables it accepts, in the order it accepts them, and from which the quantiles are then chosen.
+	// add() takes ownership of inTable.
+	public interface TableCollector
+	{
+		public void add(PenetranceTable inTable);
+		public int size();
+		public double[] getSortedScores();
+		// Choose inQuantileCount of the tables, with scores spread uniformly over the population's, as selectRepresentativesUniformly() does.
+		public PenetranceTable[] selectQuantileTables(int inQuantileCount) throws Exception;
+	}
+	
+	// Keeps every table.
+	private static class TableListCollector implements TableCollector
+	{
+		private final boolean useOddsRatio;
+		private final List<PenetranceTable> tables = new ArrayList<PenetranceTable>();
+		private PenetranceTable[] sortedTables;		// null if tables have been added since they were last sorted
+		
+		public TableListCollector(boolean inUseOddsRatio)
+		{
+			useOddsRatio = inUseOddsRatio;
+		}
+		
+		public void add(PenetranceTable inTable)
+		{
+			tables.add(inTable);
+			sortedTables = null;
+		}
+		
+		public int size()
+		{
+			return tables.size();
+		}
+		
+		public double[] getSortedScores()
+		{
+			PenetranceTable[] sorted = getSortedTables();
+			double[] outScores = new double[sorted.length];
+			for(int i = 0; i < sorted.length; ++i)
+				outScores[i] = sorted[i].getQuantileScore(useOddsRatio);
+			return outScores;
+		}
+		
+		public PenetranceTable[] selectQuantileTables(int inQuantileCount)
+		{
+			return getRepresentatives(getSortedTables(), selectRepresentativesUniformly(inQuantileCount, getSortedScores()));
+		}
+		
+		public PenetranceTable[] getSortedTables()
+		{
+			if(sortedTables == null)
+			{
+				PenetranceTable.PenetranceTableComparatorEdm edmComparator = new PenetranceTable.PenetranceTableComparatorEdm();
+				PenetranceTable.PenetranceTableComparatorOddsRatio oddsComparator = new PenetranceTable.PenetranceTableComparatorOddsRatio();
+				sortedTables = tables.toArray(new PenetranceTable[0]);
+				if(useOddsRatio)
+					Arrays.sort(sortedTables, oddsComparator);
+				else
+					Arrays.sort(sortedTables, edmComparator);
+			}
+			return sortedTables;
+		}
+	}
+	
+	// Keeps only the seed and the score of each table, and rebuilds just the chosen tables from their seeds.
+	// Needs the tables to have been found by a seed-indexed search (see setUseSeedIndexedTables()).
+	private class SeedIndexedCollector implements TableCollector
+	{
+		private final boolean useOddsRatio;
+		private final float desiredHeritability;
+		private final float heritabilityTolerance;
+		private final Float desiredPrevalence;
+		private final int attributeCount;
+		private final String[] attributeNames;
+		private final GenotypeProbabilities genotypeProbabilities;
+		private double[] scores;
+		private long[] seeds;
+		private int count;
+		private int[] sortedOrder;		// The indices of the tables in increasing order of score; null if tables have been added since it was calculated
+		
+		public SeedIndexedCollector(
+			boolean inUseOddsRatio, float inDesiredHeritability, float inHeritabilityTolerance, Float inDesiredPrevalence,
+			int inAttributeCount, String[] inAttributeNames, float[] inAlleleFrequencies)
+		{
+			useOddsRatio = inUseOddsRatio;
+			desiredHeritability = inDesiredHeritability;
+			heritabilityTolerance = inHeritabilityTolerance;
+			desiredPrevalence = inDesiredPrevalence;
+			attributeCount = inAttributeCount;
+			attributeNames = inAttributeNames;
+			genotypeProbabilities = new GenotypeProbabilities(3, inAlleleFrequencies);
+			scores = new double[1024];
+			seeds = new long[1024];
+			count = 0;
+		}
+		
+		public void add(PenetranceTable inTable)
+		{
+			if(count == scores.length)
+			{
+				scores = Arrays.copyOf(scores, 2 * count);
+				seeds = Arrays.copyOf(seeds, 2 * count);
+			}
+			scores[count] = inTable.getQuantileScore(useOddsRatio);
+			seeds[count] = inTable.getGenerationSeed();
+			++count;
+			sortedOrder = null;
+		}
+		
+		public int size()
+		{
+			return count;
+		}
+		
+		public double[] getSortedScores()
+		{
+			int[] order = getSortedOrder();
+			double[] outScores = new double[count];
+			for(int i = 0; i < count; ++i)
+				outScores[i] = scores[order[i]];
+			return outScores;
+		}
+		
+		// The seeds of the tables, in the same order as getSortedScores().
+		public long[] getSortedSeeds()
+		{
+			int[] order = getSortedOrder();
+			long[] outSeeds = new long[count];
+			for(int i = 0; i < count; ++i)
+				outSeeds[i] = seeds[order[i]];
+			return outSeeds;
+		}
+		
+		public PenetranceTable[] selectQuantileTables(int inQuantileCount) throws Exception
+		{
+			int[] order = getSortedOrder();
+			int[] representatives = selectRepresentativesUniformly(inQuantileCount, getSortedScores());
+			PenetranceTable[] outTables = new PenetranceTable[inQuantileCount];
+			for(int i = 0; i < inQuantileCount; ++i)
+			{
+				int which = order[representatives[i]];
+				outTables[i] = regeneratePenetranceTable(
+					seeds[which], desiredHeritability, heritabilityTolerance, desiredPrevalence, attributeCount, attributeNames, genotypeProbabilities);
+				assert outTables[i].getQuantileScore(useOddsRatio) == scores[which];
+			}
+			return outTables;
+		}
+		
+		private int[] getSortedOrder()
+		{
+			if(sortedOrder == null)
+			{
+				// A stable sort, so that tables with equal scores stay in the order they were found, as they would in a TableListCollector:
+				sortedOrder = new int[count];
+				for(int i = 0; i < count; ++i)
+					sortedOrder[i] = i;
+				sortIndicesByScore(sortedOrder, new int[count], 0, count);
+			}
+			return sortedOrder;
+		}
+		
+		// Merge-sort ioIndices[inStart..inEnd-1] by their scores.
+		private void sortIndicesByScore(int[] ioIndices, int[] inScratch, int inStart, int inEnd)
+		{
+			if(inEnd - inStart < 2)
+				return;
+			int middle = (inStart + inEnd) >>> 1;
+			sortIndicesByScore(ioIndices, inScratch, inStart, middle);
+			sortIndicesByScore(ioIndices, inScratch, middle, inEnd);
+			if(scores[ioIndices[middle - 1]] <= scores[ioIndices[middle]])
+				return;
+			System.arraycopy(ioIndices, inStart, inScratch, inStart, inEnd - inStart);
+			int left = inStart;
+			int right = middle;
+			for(int dest = inStart; dest < inEnd; ++dest)
+			{
+				if(right >= inEnd || (left < middle && scores[inScratch[left]] <= scores[inScratch[right]]))
+					ioIndices[dest] = inScratch[left++];
+				else
+					ioIndices[dest] = inScratch[right++];
+			}
+		}
+	}
 
-	private Random random = new Random();
+	private Random random = new UnsynchronizedRandom();		// Same numbers as a Random, but cheaper for the datasets' noise genotypes
 	private PenetranceTableQuantile[] penetranceTableQuantiles;
 	private SnpGenDocument document;
 	
 	private int tablePopulationCountFound;
+	private boolean useClosedFormGeneration;
+	private boolean useFusedNormalization;
+	private Integer searchThreadCount;
+	private GenerationStats[] generationStats;		// generationStats[whichModel] == the stats of the last generateTablesForModels()
+	private boolean writeGenerationStats;
+	private boolean useStreamingSelection;
+	private boolean useSeedIndexedTables;
+	private long[][] tableSeeds;		// tableSeeds[whichModel] == the seeds of the tables whose scores generateTablesForModels() returned, in the same order
+	private Double convergenceTolerance;
+	private ConvergenceMonitor.Rule convergenceRule = ConvergenceMonitor.Rule.Stability;
+	private boolean useStratifiedSampling;
+	private Integer datasetThreadCount;
+	private final Map<String, Double> maxHeritabilityEstimates = new HashMap<String, Double>();		// See estimateMaxHeritability()
+	private Double targetScore;
+	private double targetScoreTolerance = kDefaultTargetScoreTolerance;
 	
 	public SnpGenSimulator()
 	{
@@ -72,9 +286,10 @@ public class SnpGenSimulator
 		return penetranceTableQuantiles;
 	}
 	
+	// UnsynchronizedRandom gives the same numbers as a Random, more cheaply.
 	private static Random createRandom(Integer inSeed)
 	{
-		Random outRandom = new Random();
+		Random outRandom = new UnsynchronizedRandom();
 		setRandomSeed(outRandom, inSeed);
 		return outRandom;
 	}
@@ -90,6 +305,101 @@ public class SnpGenSimulator
 		setRandomSeed(random, inSeed);
 	}
 	
+	// If true, build each candidate table with PenetranceTable.generateUnnormalizedClosedForm() rather than by propagation.
+	public void setUseClosedFormGeneration(boolean inUseClosedFormGeneration)
+	{
+		useClosedFormGeneration = inUseClosedFormGeneration;
+	}
+	
+	// If true, normalize each candidate table with PenetranceTable.normalizeFused(), which rewrites the cells in a single pass.
+	public void setUseFusedNormalization(boolean inUseFusedNormalization)
+	{
+		useFusedNormalization = inUseFusedNormalization;
+	}
+	
+	// If non-null, search for penetrance tables with a ParallelTableSearch on this many threads.
+	// Its results depend on the random seed but not on the thread count; they differ from those of the default, sequential search.
+	public void setSearchThreadCount(Integer inSearchThreadCount)
+	{
+		searchThreadCount = inSearchThreadCount;
+	}
+	
+	// If non-null, generateDatasets() generates the datasets on this many threads, each from its own Random, seeded from the random seed
+	// and the dataset's position; the datasets don't depend on the thread count, but they differ from those of the default, sequential loop.
+	public void setDatasetThreadCount(Integer inDatasetThreadCount)
+	{
+		datasetThreadCount = inDatasetThreadCount;
+	}
+	
+	// If true, writeTablesAndScoresToFile() also writes the GenerationStats of each model next to the scores file.
+	public void setWriteGenerationStats(boolean inWriteGenerationStats)
+	{
+		writeGenerationStats = inWriteGenerationStats;
+	}
+	
+	// If true, generateTablesForModels() keeps only the scores of the tables it finds and the tables near the quantiles,
+	// using a StreamingQuantileSelector, rather than all of the tables.
+	public void setUseStreamingSelection(boolean inUseStreamingSelection)
+	{
+		useStreamingSelection = inUseStreamingSelection;
+	}
+	
+	// If true, each try builds its table from its own seed, drawn from the search's Random, so that any table found
+	// can be rebuilt from its seed with regeneratePenetranceTable(). generateTablesForModels() then keeps only the seed and the score
+	// of each table found, rather than the table, and rebuilds just the tables chosen for the quantiles.
+	// The tables found differ from those found without it, since the random numbers are used differently.
+	public void setUseSeedIndexedTables(boolean inUseSeedIndexedTables)
+	{
+		useSeedIndexedTables = inUseSeedIndexedTables;
+	}
+	
+	// If non-null, generateTablesForModels() stops each model's search early, with fewer than the desired number of tables,
+	// once a ConvergenceMonitor with this tolerance and the convergence rule finds that its quantiles have settled.
+	// The reason each search stopped is recorded in its GenerationStats.
+	public void setConvergenceTolerance(Double inConvergenceTolerance)
+	{
+		convergenceTolerance = inConvergenceTolerance;
+	}
+	
+	public void setConvergenceRule(ConvergenceMonitor.Rule inConvergenceRule)
+	{
+		convergenceRule = inConvergenceRule;
+	}
+	
+	// If true, generateTablesForModels() follows each model's search with fillQuantileBins(), so that every quantile can have a table near its target score.
+	// This can't be combined with seed-indexed tables, since the tables it finds can't be rebuilt from their seeds alone.
+	public void setUseStratifiedSampling(boolean inUseStratifiedSampling)
+	{
+		useStratifiedSampling = inUseStratifiedSampling;
+	}
+	
+	// If non-null, generateTablesForModels() doesn't search for a population of tables, but uses solvePenetranceTable() to find
+	// each of a model's quantile tables directly, with a score (EDM, or odds ratio if the model uses it) within the target-score tolerance
+	// of inTargetScore. Each table starts from different random coordinates, so the quantiles are different tables with about the same score.
+	public void setTargetScore(Double inTargetScore)
+	{
+		targetScore = inTargetScore;
+	}
+	
+	// The tolerance of the target score, relative to the target score.
+	public void setTargetScoreTolerance(double inTargetScoreTolerance)
+	{
+		targetScoreTolerance = inTargetScoreTolerance;
+	}
+	
+	// Returns the seeds of each model's tables from the last generateTablesForModels(), in the same order as the scores it returned,
+	// or null if it wasn't seed-indexed.
+	public long[][] getTableSeeds()
+	{
+		return tableSeeds;
+	}
+	
+	// Returns the GenerationStats of each model from the last generateTablesForModels().
+	public GenerationStats[] getGenerationStats()
+	{
+		return generationStats;
+	}
+	
 	public int getTablePopulationCountFound()
 	{
 		return tablePopulationCountFound;
@@ -104,40 +414,370 @@ public class SnpGenSimulator
 	{
 		System.out.println("Generating models...");
 		int modelCount = modelList.size();
+		if(useStratifiedSampling && useSeedIndexedTables)
+			throw new InputException("Stratified sampling can't be combined with seed-indexed tables");
+		checkModelFeasibility(modelList);
 		
 		double[][] allTableScores = new double[modelCount][];
-		for(int whichModel = 0; whichModel < modelCount; ++whichModel)
+		generationStats = new GenerationStats[modelCount];
+		tableSeeds = (useSeedIndexedTables && targetScore == null) ? new long[modelCount][] : null;
+		if(targetScore != null)
+		{
+			for(int whichModel = 0; whichModel < modelCount; ++whichModel)
+			{
+				generationStats[whichModel] = new GenerationStats();
+				allTableScores[whichModel] = solveTablesForOneModel(modelList.get(whichModel), desiredQuantileCount, inTryCount, generationStats[whichModel], whichModel);
+			}
+		}
+		else if(searchThreadCount != null)
 		{
-			int progressValueBase = whichModel * inDesiredPopulationCount;
-			DocModel model = modelList.get(whichModel);
-			allTableScores[whichModel] = generateTablesForOneModel(model, desiredQuantileCount, inDesiredPopulationCount, inTryCount, inProgressHandler, progressValueBase);
+			// Search for all of the models' tables at once, sharing the searchThreadCount workers.
+			// Each search takes one seed from random, in model order, followed by the seed for its stratified sampling, if any,
+			// just as it would if the models were searched one after another, so the results are the same as if they had been.
+			ParallelTableSearch[] searches = new ParallelTableSearch[modelCount];
+			TableCollector[] collectors = new TableCollector[modelCount];
+			long[] fillSeeds = new long[modelCount];
+			SearchProgress progress = new SearchProgress(inProgressHandler, 0);
+			for(int whichModel = 0; whichModel < modelCount; ++whichModel)
+			{
+				DocModel model = modelList.get(whichModel);
+				generationStats[whichModel] = new GenerationStats();
+				collectors[whichModel] = createTableCollector(model, desiredQuantileCount);
+				searches[whichModel] = createTableSearch(
+					random, inDesiredPopulationCount, inTryCount, model.heritability.getFloat(), -1, model.prevalence.getFloat(), model.attributeCount.getInteger(), model.getAttributeNames(), model.getAlleleFrequencies(),
+					collectors[whichModel], progress, generationStats[whichModel]);
+				if(useStratifiedSampling)
+					fillSeeds[whichModel] = random.nextLong();
+			}
+			runTableSearches(searches, searchThreadCount);
+			for(int whichModel = 0; whichModel < modelCount; ++whichModel)
+			{
+				PenetranceTable[] fillTables = null;
+				if(useStratifiedSampling)
+					fillTables = fillQuantileBins(fillSeeds[whichModel], modelList.get(whichModel), desiredQuantileCount, inTryCount, collectors[whichModel], generationStats[whichModel], whichModel);
+				allTableScores[whichModel] = selectTablesForOneModel(modelList.get(whichModel), desiredQuantileCount, inDesiredPopulationCount, collectors[whichModel], fillTables, generationStats[whichModel], whichModel);
+			}
+		}
+		else
+		{
+			for(int whichModel = 0; whichModel < modelCount; ++whichModel)
+			{
+				int progressValueBase = whichModel * inDesiredPopulationCount;
+				DocModel model = modelList.get(whichModel);
+				generationStats[whichModel] = new GenerationStats();
+				allTableScores[whichModel] = generateTablesForOneModel(model, desiredQuantileCount, inDesiredPopulationCount, inTryCount, inProgressHandler, progressValueBase, generationStats[whichModel], whichModel);
+			}
 		}
 		System.out.println("Done generating models.");
 		return allTableScores;
 	}
 	
 	// Returns the number of tables found, from which the desired quantiles were chosen.
-	private double[] generateTablesForOneModel(DocModel model, int desiredQuantileCount, int inDesiredPopulationCount, int inTryCount, ProgressHandler inProgressHandler, int inProgressValueBase) throws Exception
+	private double[] generateTablesForOneModel(DocModel model, int desiredQuantileCount, int inDesiredPopulationCount, int inTryCount, ProgressHandler inProgressHandler, int inProgressValueBase, GenerationStats outStats, int inWhichModel) throws Exception
+	{
+		TableCollector collector = createTableCollector(model, desiredQuantileCount);
+		searchPenetranceTables(
+			random, inDesiredPopulationCount, inTryCount, model.heritability.getFloat(), -1, model.prevalence.getFloat(), model.attributeCount.getInteger(), model.getAttributeNames(), model.getAlleleFrequencies(), 
+			collector, inProgressHandler, inProgressValueBase, outStats);
+		PenetranceTable[] fillTables = null;
+		if(useStratifiedSampling)
+			fillTables = fillQuantileBins(random.nextLong(), model, desiredQuantileCount, inTryCount, collector, outStats, inWhichModel);
+		return selectTablesForOneModel(model, desiredQuantileCount, inDesiredPopulationCount, collector, fillTables, outStats, inWhichModel);
+	}
+	
+	// Throw an InputException, before any search is run, if any model's heritability clearly can't be reached at its prevalence
+	// with its minor-allele frequencies, since every try would then fail to normalize. The message gives the achievable range.
+	public void checkModelFeasibility(ArrayList<DocModel> modelList) throws Exception
+	{
+		for(DocModel model: modelList)
+		{
+			double maxHeritability = estimateMaxHeritability(model);
+			if(model.heritability.getFloat() > maxHeritability * kFeasibilityMargin)
+			{
+				NumberFormat format = NumberFormat.getInstance();
+				format.setMaximumFractionDigits(4);
+				String prevalence = (model.prevalence.getFloat() == null) ? "an unconstrained prevalence" : ("a prevalence of " + format.format(model.prevalence.getFloat()));
+				throw new InputException(model.modelId.getString() + ": a heritability of " + format.format(model.heritability.getFloat())
+					+ " can't be reached with these minor-allele frequencies at " + prevalence
+					+ "; the achievable heritability is from 0 to about " + format.format(maxHeritability));
+			}
+		}
+	}
+	
+	// Estimate the highest heritability that model's tables can have at its prevalence, with a TargetScoreSolver.
+	// The estimate is the highest found, so the true maximum may be a little higher; the same model always gets the same estimate,
+	// so it's only computed once for each prevalence and set of minor-allele frequencies, however often the model is checked.
+	public double estimateMaxHeritability(DocModel model) throws Exception
+	{
+		String key = model.prevalence.getFloat() + " " + Arrays.toString(model.getAlleleFrequencies()) + " " + useFusedNormalization;
+		synchronized(maxHeritabilityEstimates)
+		{
+			Double outEstimate = maxHeritabilityEstimates.get(key);
+			if(outEstimate == null)
+			{
+				TargetScoreSolver solver = new TargetScoreSolver(new Random(kFeasibilitySeed), useFusedNormalization);
+				outEstimate = solver.estimateMaxHeritability(model.prevalence.getFloat(), new GenotypeProbabilities(3, model.getAlleleFrequencies()), kFeasibilityEvaluationCount);
+				maxHeritabilityEstimates.put(key, outEstimate);
+			}
+			return outEstimate;
+		}
+	}
+	
+	// Run a pilot of the search for model's tables, and size the try count from its acceptance rate so that the search finds
+	// inPopulationCount tables with probability inProbability; see TryBudget. The pilot uses the same generation options as the search.
+	// Check the model with checkModelFeasibility() first: a model whose heritability can't be reached fails here with a less helpful message.
+	public TryBudget estimateTryBudget(DocModel model, int inPopulationCount, double inProbability) throws Exception
+	{
+		Random pilotRandom = new Random(kPilotSeed);
+		GenerationStats stats = new GenerationStats();
+		long startNanos = System.nanoTime();
+		while(stats.getTryCount() < kPilotMaxTryCount && stats.getCount(GenerationStats.Outcome.Accepted) < kPilotMinAcceptedCount)
+		{
+			generatePenetranceTables(
+				pilotRandom, Integer.MAX_VALUE, kPilotBatchTryCount, model.heritability.getFloat(), -1, model.prevalence.getFloat(), model.attributeCount.getInteger(), model.getAttributeNames(), model.getAlleleFrequencies(), 
+				model.getUseOddsRatio(), null, 0, stats);
+		}
+		long pilotNanos = System.nanoTime() - startNanos;
+		long acceptedCount = stats.getCount(GenerationStats.Outcome.Accepted);
+		if(acceptedCount == 0)
+			throw new ProcessingException(model.modelId.getString() + ": no table was accepted in " + stats.getTryCount() + " pilot tries, so the try count can't be sized");
+		return new TryBudget((int) stats.getTryCount(), acceptedCount, pilotNanos, inPopulationCount, inProbability);
+	}
+	
+	// Size the try count for all of the models with estimateTryBudget(), print each model's budget, and return the largest try count.
+	public int estimateTryCount(ArrayList<DocModel> modelList, int inPopulationCount, double inProbability) throws Exception
+	{
+		checkModelFeasibility(modelList);
+		int outTryCount = 0;
+		for(int whichModel = 0; whichModel < modelList.size(); ++whichModel)
+		{
+			TryBudget budget = estimateTryBudget(modelList.get(whichModel), inPopulationCount, inProbability);
+			System.out.println("Model " + whichModel + ": " + budget);
+			outTryCount = Math.max(outTryCount, budget.getTryCount());
+		}
+		return outTryCount;
+	}
+	
+	// Find each of model's quantile tables with solvePenetranceTable(), trying up to inTryCount candidates for each,
+	// and return the sorted scores of the tables.
+	private double[] solveTablesForOneModel(DocModel model, int desiredQuantileCount, int inTryCount, GenerationStats ioStats, int inWhichModel) throws Exception
+	{
+		TargetScoreSolver solver = new TargetScoreSolver(random, useFusedNormalization);
+		GenotypeProbabilities genotypeProbabilities = new GenotypeProbabilities(3, model.getAlleleFrequencies());
+		PenetranceTable[] tables = new PenetranceTable[desiredQuantileCount];
+		double[] outScores = new double[desiredQuantileCount];
+		long startNanos = System.nanoTime();
+		for(int q = 0; q < desiredQuantileCount; ++q)
+		{
+			tables[q] = solver.solve(
+				model.heritability.getFloat(), model.prevalence.getFloat(), model.getAttributeNames(), genotypeProbabilities,
+				model.getUseOddsRatio(), targetScore, targetScoreTolerance, inTryCount);
+			if(tables[q] == null)
+				throw new ProcessingException("Unable to find a table with the desired heritability for model " + inWhichModel);
+			outScores[q] = tables[q].getQuantileScore(model.getUseOddsRatio());
+			System.out.println("Model " + inWhichModel + ", quantile " + q + ": score " + outScores[q] + " (target " + targetScore + ") after "
+				+ solver.getEvaluationCount() + " candidates and " + solver.getRestartCount() + " restarts");
+		}
+		ioStats.addStageNanos(GenerationStats.Stage.Construct, System.nanoTime() - startNanos);
+		ioStats.setStopReason(GenerationStats.StopReason.PopulationReached);
+		Arrays.sort(outScores);
+		tablePopulationCountFound = desiredQuantileCount;
+		model.setPenetranceTables(tables);
+		return outScores;
+	}
+	
+	// Find a table for model whose score (EDM, or odds ratio if the model uses it) is within inTolerance * |inTargetScore| of inTargetScore,
+	// directly, with a TargetScoreSolver, rather than by searching for a population of tables and choosing the nearest quantile.
+	// Returns the nearest table found in inMaxEvaluations candidates, which may be farther than that if the target can't be reached,
+	// or null if no candidate could be normalized.
+	public PenetranceTable solvePenetranceTable(DocModel model, double inTargetScore, double inTolerance, int inMaxEvaluations) throws Exception
+	{
+		TargetScoreSolver solver = new TargetScoreSolver(random, useFusedNormalization);
+		return solver.solve(
+			model.heritability.getFloat(), model.prevalence.getFloat(), model.getAttributeNames(), new GenotypeProbabilities(3, model.getAlleleFrequencies()),
+			model.getUseOddsRatio(), inTargetScore, inTolerance, inMaxEvaluations);
+	}
+	
+	private TableCollector createTableCollector(DocModel model, int inQuantileCount)
+	{
+		TableCollector outCollector;
+		if(useSeedIndexedTables)
+			outCollector = new SeedIndexedCollector(
+				model.getUseOddsRatio(), model.heritability.getFloat(), -1, model.prevalence.getFloat(), model.attributeCount.getInteger(), model.getAttributeNames(), model.getAlleleFrequencies());
+		else if(useStreamingSelection)
+			outCollector = new StreamingQuantileSelector(inQuantileCount, model.getUseOddsRatio());
+		else
+			outCollector = new TableListCollector(model.getUseOddsRatio());
+		if(convergenceTolerance != null)
+			outCollector = new ConvergenceMonitor(outCollector, inQuantileCount, model.getUseOddsRatio(), convergenceTolerance, convergenceRule);
+		return outCollector;
+	}
+	
+	// True if a search putting its tables into inCollector can stop: it has found inDesiredTableCount tables, or its quantiles have converged.
+	private static boolean hasEnoughTables(TableCollector inCollector, int inDesiredTableCount)
+	{
+		if(inCollector.size() >= inDesiredTableCount)
+			return true;
+		return (inCollector instanceof ConvergenceMonitor) && ((ConvergenceMonitor) inCollector).hasConverged();
+	}
+	
+	// Choose the model's quantile tables from the population in inCollector, and return the sorted scores of the population.
+	// If inFillTables is non-null, each of its non-null tables (from fillQuantileBins()) replaces the table chosen for its quantile.
+	// Also records in ioStats why the search stopped.
+	private double[] selectTablesForOneModel(DocModel model, int desiredQuantileCount, int inDesiredPopulationCount, TableCollector inCollector, PenetranceTable[] inFillTables, GenerationStats ioStats, int inWhichModel) throws Exception
 	{
 		double[] outAllTableScores;
+		PenetranceTable[] tables;
 		
-		PenetranceTable[] tables = generatePenetranceTables(model, inDesiredPopulationCount, inTryCount, inProgressHandler, inProgressValueBase);
-		int tableCount = tables.length;
+		int tableCount = inCollector.size();
+		recordStopReason(inCollector, inDesiredPopulationCount, ioStats);
+		if(ioStats.getConvergenceReport() != null)
+			System.out.println("Model " + inWhichModel + ": " + ioStats.getStopReason() + " after " + tableCount + " tables; " + ioStats.getConvergenceReport());
 		if(tableCount < desiredQuantileCount)
 			throw new ProcessingException("Unable to generate desired number of table quantiles");
 		
-		outAllTableScores = new double[tableCount];
-		for(int i = 0; i < tableCount; ++i)
+		long startNanos = System.nanoTime();
+		outAllTableScores = inCollector.getSortedScores();
+		tables = inCollector.selectQuantileTables(desiredQuantileCount);
+		if(inFillTables != null)
 		{
-			outAllTableScores[i] = tables[i].getQuantileScore(model.getUseOddsRatio());
+			for(int i = 0; i < desiredQuantileCount; ++i)
+			{
+				if(inFillTables[i] != null)
+					tables[i] = inFillTables[i];
+			}
 		}
+		ioStats.addStageNanos(GenerationStats.Stage.Score, System.nanoTime() - startNanos);
 		
 		tablePopulationCountFound = tableCount;
 		
-		selectPenetranceTablesRepresentativesUniformly(desiredQuantileCount, tables, model);
+		model.setPenetranceTables(tables);
+		TableCollector collector = inCollector;
+		if(collector instanceof ConvergenceMonitor)
+			collector = ((ConvergenceMonitor) collector).getDelegate();
+		if(collector instanceof SeedIndexedCollector)
+			tableSeeds[inWhichModel] = ((SeedIndexedCollector) collector).getSortedSeeds();
 		return outAllTableScores;
 	}
 	
+	// Plain sampling rarely finds tables in the tails of the score distribution, so the quantiles between the lowest and highest scores
+	// can have no table near their target scores, and are then represented by tables chosen for their neighbours.
+	// This keeps trying tables, for up to inTryCount more tries, to find a table for each such empty bin: the target scores and bins are those of
+	// the plain search's population in inCollector (spread evenly from its lowest score to its highest, as in selectRepresentativesUniformly()),
+	// and are fixed before the first try. A table is kept only if its score is nearer an empty bin's target than half a target-spacing,
+	// and then fills that bin; tables outside the population's range, or in a bin that's already filled, are dropped.
+	// The tries are stratified by the basis exponent of the tables (see PenetranceTable.setBasisExponent()): each batch of kStratumBatchSize
+	// tries uses the stratum that has most often filled an empty bin so far, with add-one smoothing so that each gets tried.
+	// None of the tables is added to inCollector, so the population in the scores file, and the quantiles chosen from it, are still
+	// the plain search's; selectTablesForOneModel() then puts each filling table in place of the neighbour chosen for its bin.
+	// The number of bins filled from each stratum is recorded in ioStats.
+	// The tries draw from their own Random, seeded with inSeed, so that the search's Random gives up just one number for them.
+	// Returns the filling table of each bin, or null for the bins that were filled by the population or are still empty.
+	private PenetranceTable[] fillQuantileBins(long inSeed, DocModel model, int inQuantileCount, int inTryCount, TableCollector inCollector, GenerationStats ioStats, int inWhichModel) throws Exception
+	{
+		PenetranceTable[] outFillTables = new PenetranceTable[inQuantileCount];
+		// With fewer than 3 quantiles the targets are just the lowest and highest scores, which always have tables:
+		if(inQuantileCount < 3 || inCollector.size() == 0)
+			return outFillTables;
+		
+		Random random = new UnsynchronizedRandom(inSeed);
+		boolean useOddsRatio = model.getUseOddsRatio();
+		GenotypeProbabilities genotypeProbabilities = new GenotypeProbabilities(3, model.getAlleleFrequencies());
+		PenetranceTable scratchTable = createScratchTable(model.heritability.getFloat(), model.prevalence.getFloat(), model.attributeCount.getInteger(), model.getAttributeNames());
+		double[] scores = inCollector.getSortedScores();
+		double minScore = scores[0];
+		double maxScore = scores[scores.length - 1];
+		double spacing = (maxScore - minScore) / (inQuantileCount - 1);
+		boolean[] binFilled = new boolean[inQuantileCount];
+		int initialEmptyBinCount = findFilledBins(scores, scores.length, binFilled);
+		int emptyBinCount = initialEmptyBinCount;
+		int[] stratumTries = new int[kStratumBasisExponents.length];
+		int[] stratumHits = new int[kStratumBasisExponents.length];		// The empty bins filled by each stratum's tables
+		int tryCount = 0;
+		
+		for(int triesLeft = inTryCount; triesLeft > 0 && emptyBinCount > 0; )
+		{
+			int stratum = 0;
+			for(int i = 1; i < kStratumBasisExponents.length; ++i)
+			{
+				if((stratumHits[i] + 1) / (double) (stratumTries[i] + 2) > (stratumHits[stratum] + 1) / (double) (stratumTries[stratum] + 2))
+					stratum = i;
+			}
+			scratchTable.setBasisExponent(kStratumBasisExponents[stratum]);
+			int batchSize = Math.min(kStratumBatchSize, triesLeft);
+			int i;
+			for(i = 0; i < batchSize && emptyBinCount > 0; ++i)
+			{
+				if(!tryPenetranceTable(random, scratchTable, genotypeProbabilities, -1, ioStats))
+					continue;
+				double score = scratchTable.getQuantileScore(useOddsRatio);
+				if(score < minScore || score > maxScore)
+					continue;
+				int bin = (int) Math.round((score - minScore) / spacing);
+				if(binFilled[bin])
+					continue;
+				outFillTables[bin] = (PenetranceTable) scratchTable.clone();
+				binFilled[bin] = true;
+				--emptyBinCount;
+				++stratumHits[stratum];
+			}
+			stratumTries[stratum] += i;
+			triesLeft -= i;
+			tryCount += i;
+		}
+		StringBuilder report = new StringBuilder();
+		report.append((initialEmptyBinCount - emptyBinCount) + " of " + initialEmptyBinCount + " empty quantile bins filled in " + tryCount + " tries (");
+		for(int i = 0; i < kStratumBasisExponents.length; ++i)
+			report.append(((i == 0) ? "" : ", ") + stratumHits[i] + " with basis exponent " + kStratumBasisExponents[i]);
+		report.append("); the filling tables aren't in the population");
+		ioStats.setStratumReport(report.toString());
+		System.out.println("Model " + inWhichModel + ": stratified sampling: " + report);
+		return outFillTables;
+	}
+	
+	// Set outBinFilled[i] to whether any of inSortedScores[0..inScoreCount-1] is within half a target-spacing of the ith target score,
+	// and return the number of bins that aren't filled.
+	private static int findFilledBins(double[] inSortedScores, int inScoreCount, boolean[] outBinFilled)
+	{
+		int quantileCount = outBinFilled.length;
+		double minScore = inSortedScores[0];
+		double spacing = (inSortedScores[inScoreCount - 1] - minScore) / (quantileCount - 1);
+		int outEmptyCount = 0;
+		for(int i = 0; i < quantileCount; ++i)
+		{
+			double target = minScore + i * spacing;
+			int first = Arrays.binarySearch(inSortedScores, 0, inScoreCount, target - spacing / 2);
+			if(first < 0)
+				first = -first - 1;
+			outBinFilled[i] = (first < inScoreCount && inSortedScores[first] <= target + spacing / 2);
+			if(!outBinFilled[i])
+				++outEmptyCount;
+		}
+		return outEmptyCount;
+	}
+	
+	private static void recordStopReason(TableCollector inCollector, int inDesiredTableCount, GenerationStats ioStats)
+	{
+		if(inCollector.size() >= inDesiredTableCount)
+			ioStats.setStopReason(GenerationStats.StopReason.PopulationReached);
+		else if(hasEnoughTables(inCollector, inDesiredTableCount))
+			ioStats.setStopReason(GenerationStats.StopReason.Converged);
+		else
+			ioStats.setStopReason(GenerationStats.StopReason.TriesExhausted);
+		
+		if(inCollector instanceof ConvergenceMonitor)
+		{
+			ConvergenceMonitor monitor = (ConvergenceMonitor) inCollector;
+			NumberFormat format = NumberFormat.getInstance();
+			format.setMaximumFractionDigits(4);
+			String change = Double.isNaN(monitor.getLastTargetChange()) ? "none yet" : (format.format(monitor.getLastTargetChange()) + " of the score range");
+			ioStats.setConvergenceReport(
+				"rule " + monitor.getRule() + ", tolerance " + monitor.getTolerance()
+				+ ", last target change " + change
+				+ ", DKW confidence " + format.format(monitor.getDkwConfidence()) + " that the score distribution is within the tolerance");
+		}
+	}
+	
 	// inAllTableScores[eachModel][eachScore]
 	public void writeTablesAndScoresToFile(ArrayList<DocModel> modelList, double[][] inAllTableScores, int quantileCount, File destFile) throws IOException
 	{
@@ -186,6 +826,39 @@ public class SnpGenSimulator
 			}
 			scoreStream.close();
 			
+			// Write the seeds of the tables, if they were kept, next to the scores:
+			if(tableSeeds != null)
+			{
+				File seedFile = new File(directory, baseFilename + "_Seeds.txt");
+				PrintWriter seedStream = new PrintWriter(new FileWriter(seedFile));
+				for(int whichModel = 0; whichModel < modelCount; ++whichModel)
+				{
+					seedStream.println("Seeds and " + scoreName + " scores for model: " + whichModel);
+					// A model's seeds can be missing, eg if its collector didn't keep them:
+					if(tableSeeds[whichModel] != null)
+					{
+						for(int i = 0; i < tableSeeds[whichModel].length; ++i)
+							seedStream.println(tableSeeds[whichModel][i] + "\t" + inAllTableScores[whichModel][i]);
+					}
+					seedStream.println();
+				}
+				seedStream.close();
+			}
+			
+			// Write the generation stats next to the scores:
+			if(writeGenerationStats && generationStats != null)
+			{
+				File statsFile = new File(directory, baseFilename + "_Stats.txt");
+				PrintWriter statsStream = new PrintWriter(new FileWriter(statsFile));
+				for(int whichModel = 0; whichModel < generationStats.length; ++whichModel)
+				{
+					statsStream.println("Generation stats for model: " + whichModel);
+					generationStats[whichModel].write(statsStream);
+					statsStream.println();
+				}
+				statsStream.close();
+			}
+			
 			// Write penetrance tables to the output file:
 			File tablesFile = new File(directory, baseFilename + "_models.txt");
 			PrintWriter tableStream = null;
@@ -320,17 +993,20 @@ public class SnpGenSimulator
 		boolean outSuccess = false;
 		for(int whichTableIteration = 0; whichTableIteration < tablesToTryCount; ++whichTableIteration)
 		{
-			outPenetranceTable.clear();
+			outPenetranceTable.reset();
 			outPenetranceTable.initialize(random, inAlleleFrequencies);
-			error = outPenetranceTable.generateUnnormalized(random);
+			error = generateUnnormalized(random, outPenetranceTable);
 			if(error != PenetranceTable.ErrorState.Ambiguous && error != PenetranceTable.ErrorState.Conflict)
 			{
-				outPenetranceTable.normalize();
+				if(useFusedNormalization)
+					outPenetranceTable.normalizeFused(-1);
+				else
+					outPenetranceTable.normalize();
 				if(outPenetranceTable.normalized)
 				{
 					outPenetranceTable.checkRowSums();
 					if(!outPenetranceTable.rowSumsValid)
-						throw new Exception("Table failed the row-sum test!");
+						throw new Exception("Table failed the row-sum test, with a largest deviation of " + outPenetranceTable.getRowSumDeviation() + "!");
 					outSuccess = true;
 					break;
 				}
@@ -339,137 +1015,416 @@ public class SnpGenSimulator
 		return outSuccess;
 	}
 	
-	public PenetranceTable[] generatePenetranceTables(DocModel model, int inDesiredTableCount, int inTryCount, ProgressHandler inProgressHandler, int inProgressValueBase) throws Exception
+	private PenetranceTable.ErrorState generateUnnormalized(Random inRandom, PenetranceTable ioTable) throws Exception
+	{
+		if(useClosedFormGeneration)
+			return ioTable.generateUnnormalizedClosedForm(inRandom);
+		else
+			return ioTable.generateUnnormalized(inRandom);
+	}
+	
+	// If outStats is non-null, the outcomes and timings of the tries are added to it.
+	public PenetranceTable[] generatePenetranceTables(DocModel model, int inDesiredTableCount, int inTryCount, ProgressHandler inProgressHandler, int inProgressValueBase, GenerationStats outStats) throws Exception
 	{
 		return generatePenetranceTables(
 			random, inDesiredTableCount, inTryCount, model.heritability.getFloat(), -1, model.prevalence.getFloat(), model.attributeCount.getInteger(), model.getAttributeNames(), model.getAlleleFrequencies(), 
-			model.getUseOddsRatio(), inProgressHandler, inProgressValueBase);
+			model.getUseOddsRatio(), inProgressHandler, inProgressValueBase, outStats);
 	}
 	
+	// Returns all of the tables found, sorted by score.
 	public PenetranceTable[] generatePenetranceTables(
 		Random inRandom, int inDesiredTableCount, int inTablesToTryCount, float inDesiredHeritability, float inHeritabilityTolerance, Float inDesiredPrevalence,
-		int inAttributeCount, String[] inAttributeNames, float[] inAlleleFrequencies, boolean inUseOddsRatio, ProgressHandler inProgressHandler, int inProgressValueBase) throws Exception
+		int inAttributeCount, String[] inAttributeNames, float[] inAlleleFrequencies, boolean inUseOddsRatio, ProgressHandler inProgressHandler, int inProgressValueBase,
+		GenerationStats outStats) throws Exception
+	{
+		GenerationStats stats = (outStats != null) ? outStats : new GenerationStats();
+		TableListCollector collector = new TableListCollector(inUseOddsRatio);
+		searchPenetranceTables(
+			inRandom, inDesiredTableCount, inTablesToTryCount, inDesiredHeritability, inHeritabilityTolerance, inDesiredPrevalence,
+			inAttributeCount, inAttributeNames, inAlleleFrequencies, collector, inProgressHandler, inProgressValueBase, stats);
+		
+		long startNanos = System.nanoTime();
+		PenetranceTable[] penetranceTables = collector.getSortedTables();
+		stats.addStageNanos(GenerationStats.Stage.Score, System.nanoTime() - startNanos);
+		
+//		System.out.println(stats);
+//		heritabilities = Arrays.copyOf(heritabilities, totalHeritabilityCount);
+//		printStats(heritabilities, 20);
+//		System.out.print("\t");
+		
+		return penetranceTables;
+	}
+	
+	// Search for up to inDesiredTableCount tables, putting each one found into ioCollector.
+	private void searchPenetranceTables(
+		Random inRandom, int inDesiredTableCount, int inTablesToTryCount, float inDesiredHeritability, float inHeritabilityTolerance, Float inDesiredPrevalence,
+		int inAttributeCount, String[] inAttributeNames, float[] inAlleleFrequencies, TableCollector ioCollector, ProgressHandler inProgressHandler, int inProgressValueBase,
+		GenerationStats ioStats) throws Exception
 	{
-		long startTimeMillis;
-		PenetranceTable.ErrorState error;
-		int ambiguityCount;
-		int conflictCount;
-		int ambiguousFixedConflictCount;
-		int conflictedFixedConflictCount;
-		int successfulFixedConflictCount;
-		Exception ex;
 		PenetranceTable currentPenetranceTable;
-		PenetranceTable.PenetranceTableComparatorEdm edmComparator = new PenetranceTable.PenetranceTableComparatorEdm();
-		PenetranceTable.PenetranceTableComparatorOddsRatio oddsComparator = new PenetranceTable.PenetranceTableComparatorOddsRatio();
-		PenetranceTable[] tablesToSave;
 		
 //		double[] heritabilities = new double[inTablesToTryCount];
 //		int totalHeritabilityCount = 0;
 		
-		List<PenetranceTable> penetranceTableList = new ArrayList<PenetranceTable>();
-		PenetranceTable.fixedConflictSuccessfully = 0;
-		PenetranceTable.fixedConflictUnsuccessfully = 0;
-		for(int whichTableIteration = 0; whichTableIteration < inTablesToTryCount; ++whichTableIteration)
+		if(searchThreadCount != null)
 		{
-			ambiguityCount = 0;
-			conflictCount = 0;
-			ambiguousFixedConflictCount = 0;
-			conflictedFixedConflictCount = 0;
-			successfulFixedConflictCount = 0;
-			
-			currentPenetranceTable = new PenetranceTable(3, inAttributeCount);
-			currentPenetranceTable.desiredHeritability = inDesiredHeritability;
-			currentPenetranceTable.desiredPrevalence = inDesiredPrevalence;
-			currentPenetranceTable.setAttributeNames(inAttributeNames);
-			currentPenetranceTable.initialize(inRandom, inAlleleFrequencies);
-			error = currentPenetranceTable.generateUnnormalized(inRandom);
-			
-//			if (error == ErrorState.Ambiguous)
-//			{
-//				++ambiguityCount;
-//				if(currentPenetranceTable.fixedConflict)
-//					++ambiguousFixedConflictCount;
-//			}
-//			else if (error == ErrorState.Conflict)
-//			{
-//				++conflictCount;
-//				if(currentPenetranceTable.fixedConflict)
-//					++conflictedFixedConflictCount;
-//			}
-//			else
-//			{
-//				if(currentPenetranceTable.fixedConflict)
-//					++successfulFixedConflictCount;
-//			}
-			
-			if (error == PenetranceTable.ErrorState.Ambiguous || error == PenetranceTable.ErrorState.Conflict)
-			{
-//				System.out.println("Failed to construct the penetrance table");
-			}
-			else
+			ParallelTableSearch search = createTableSearch(
+				inRandom, inDesiredTableCount, inTablesToTryCount, inDesiredHeritability, inHeritabilityTolerance, inDesiredPrevalence,
+				inAttributeCount, inAttributeNames, inAlleleFrequencies, ioCollector, new SearchProgress(inProgressHandler, inProgressValueBase), ioStats);
+			runTableSearches(new ParallelTableSearch[] {search}, searchThreadCount);
+		}
+		else
+		{
+			// The genotype probabilities depend only on the allele frequencies, so they're computed once and shared by every try:
+			GenotypeProbabilities genotypeProbabilities = new GenotypeProbabilities(3, inAlleleFrequencies);
+			// Most tries are rejected, so every try is built in the same scratch table, and only the accepted ones are copied out:
+			currentPenetranceTable = createScratchTable(inDesiredHeritability, inDesiredPrevalence, inAttributeCount, inAttributeNames);
+			for(int whichTableIteration = 0; whichTableIteration < inTablesToTryCount; ++whichTableIteration)
 			{
-//				PenetranceTable copy = null;
-//				try
-//				{
-//					copy = (PenetranceTable) currentPenetranceTable.clone();
-//				}
-//				catch(CloneNotSupportedException cnse)
-//				{
-//					
-//				}
-//				currentPenetranceTable.verify();
-				currentPenetranceTable.scaleToUnitInterval();
-				currentPenetranceTable.adjustPrevalence();
-//				currentPenetranceTable.verify();
-				double herit = currentPenetranceTable.calcHeritability();
-//				heritabilities[totalHeritabilityCount++] = herit;
-				boolean heritabilityAchieved = false;
-				if(inHeritabilityTolerance < 0 || Math.abs((herit - currentPenetranceTable.desiredHeritability) / currentPenetranceTable.desiredHeritability) < inHeritabilityTolerance)
+				if(tryPenetranceTable(inRandom, currentPenetranceTable, genotypeProbabilities, inHeritabilityTolerance, ioStats))
 				{
-					currentPenetranceTable.adjustHeritability();
-					heritabilityAchieved = currentPenetranceTable.normalized;
+					ioCollector.add((PenetranceTable) currentPenetranceTable.clone());
+//					if(inProgressHandler != null)
+//						inProgressHandler.setValue(whichModel * inDesiredTableCount + tableCountSoFar);
+					if(hasEnoughTables(ioCollector, inDesiredTableCount))
+						break;
 				}
-				if(!heritabilityAchieved)
+				if(inProgressHandler != null)
+					inProgressHandler.setValue(inProgressValueBase + whichTableIteration);
+			}
+		}
+	}
+	
+	// Takes the search's seed from inRandom.
+	private ParallelTableSearch createTableSearch(
+		Random inRandom, int inDesiredTableCount, int inTablesToTryCount, float inDesiredHeritability, float inHeritabilityTolerance, Float inDesiredPrevalence,
+		int inAttributeCount, String[] inAttributeNames, float[] inAlleleFrequencies, TableCollector ioCollector, SearchProgress inProgress, GenerationStats ioStats)
+	{
+		return new ParallelTableSearch(
+			inRandom.nextLong(), inDesiredTableCount, inTablesToTryCount, inDesiredHeritability, inHeritabilityTolerance, inDesiredPrevalence,
+			inAttributeCount, inAttributeNames, new GenotypeProbabilities(3, inAlleleFrequencies), ioCollector, inProgress, ioStats);
+	}
+	
+	private static PenetranceTable createScratchTable(float inDesiredHeritability, Float inDesiredPrevalence, int inAttributeCount, String[] inAttributeNames)
+	{
+		PenetranceTable outTable = new PenetranceTable(3, inAttributeCount);
+		outTable.desiredHeritability = inDesiredHeritability;
+		outTable.desiredPrevalence = inDesiredPrevalence;
+		outTable.setAttributeNames(inAttributeNames);
+		return outTable;
+	}
+	
+	// Rebuild the normalized table that a seed-indexed search for model found from inSeed (see setUseSeedIndexedTables()).
+	// The generation options of this simulator must be the same as they were for the search.
+	public PenetranceTable regeneratePenetranceTable(DocModel model, long inSeed) throws Exception
+	{
+		return regeneratePenetranceTable(
+			inSeed, model.heritability.getFloat(), -1, model.prevalence.getFloat(), model.attributeCount.getInteger(), model.getAttributeNames(),
+			new GenotypeProbabilities(3, model.getAlleleFrequencies()));
+	}
+	
+	private PenetranceTable regeneratePenetranceTable(
+		long inSeed, float inDesiredHeritability, float inHeritabilityTolerance, Float inDesiredPrevalence,
+		int inAttributeCount, String[] inAttributeNames, GenotypeProbabilities inGenotypeProbabilities) throws Exception
+	{
+		PenetranceTable outTable = createScratchTable(inDesiredHeritability, inDesiredPrevalence, inAttributeCount, inAttributeNames);
+		if(!buildPenetranceTable(new Random(inSeed), outTable, inGenotypeProbabilities, inHeritabilityTolerance, new GenerationStats()))
+			throw new ProcessingException("The seed " + inSeed + " doesn't produce an acceptable table with these settings");
+		outTable.setGenerationSeed(inSeed);
+		return outTable;
+	}
+	
+	// Build one candidate table in ioScratchTable, and normalize and check it, recording the outcome and the timings in ioStats.
+	// Returns true if the table is acceptable, in which case the caller should copy it out before the next try.
+	// If the search is seed-indexed, the table is built from a Random seeded with a seed drawn from inRandom.
+	private boolean tryPenetranceTable(Random inRandom, PenetranceTable ioScratchTable, GenotypeProbabilities inGenotypeProbabilities, float inHeritabilityTolerance, GenerationStats ioStats) throws Exception
+	{
+		if(useSeedIndexedTables)
+		{
+			long seed = inRandom.nextLong();
+			ioScratchTable.setGenerationSeed(seed);
+			return buildPenetranceTable(new Random(seed), ioScratchTable, inGenotypeProbabilities, inHeritabilityTolerance, ioStats);
+		}
+		else
+			return buildPenetranceTable(inRandom, ioScratchTable, inGenotypeProbabilities, inHeritabilityTolerance, ioStats);
+	}
+	
+	private boolean buildPenetranceTable(Random inRandom, PenetranceTable ioScratchTable, GenotypeProbabilities inGenotypeProbabilities, float inHeritabilityTolerance, GenerationStats ioStats) throws Exception
+	{
+		PenetranceTable.ErrorState error;
+		long startNanos;
+		long endNanos;
+		
+		startNanos = System.nanoTime();
+		ioScratchTable.reset();
+		ioScratchTable.initialize(inRandom, inGenotypeProbabilities);
+		error = generateUnnormalized(inRandom, ioScratchTable);
+		endNanos = System.nanoTime();
+		ioStats.addStageNanos(GenerationStats.Stage.Construct, endNanos - startNanos);
+		ioStats.addFixedConflicts(ioScratchTable.fixedConflictSuccessfully, ioScratchTable.fixedConflictUnsuccessfully);
+		if (error == PenetranceTable.ErrorState.Ambiguous || error == PenetranceTable.ErrorState.Conflict)
+		{
+//			System.out.println("Failed to construct the penetrance table");
+			ioStats.countOutcome((error == PenetranceTable.ErrorState.Ambiguous) ? GenerationStats.Outcome.Ambiguous : GenerationStats.Outcome.Conflict);
+			return false;
+		}
+		
+		startNanos = endNanos;
+		boolean heritabilityAchieved = false;
+		if(useFusedNormalization)
+		{
+			ioScratchTable.normalizeFused(inHeritabilityTolerance);
+			heritabilityAchieved = ioScratchTable.normalized;
+		}
+		else
+		{
+			ioScratchTable.scaleToUnitInterval();
+			ioScratchTable.adjustPrevalence();
+//			ioScratchTable.verify();
+			double herit = ioScratchTable.calcHeritability();
+			if(inHeritabilityTolerance < 0 || Math.abs((herit - ioScratchTable.desiredHeritability) / ioScratchTable.desiredHeritability) < inHeritabilityTolerance)
+			{
+				ioScratchTable.adjustHeritability();
+				heritabilityAchieved = ioScratchTable.normalized;
+			}
+		}
+		endNanos = System.nanoTime();
+		ioStats.addStageNanos(GenerationStats.Stage.Normalize, endNanos - startNanos);
+		if(!heritabilityAchieved)
+		{
+//			System.out.println("Failed to normalize the penetrance table");
+			ioStats.countOutcome(GenerationStats.Outcome.HeritabilityInfeasible);
+			return false;
+		}
+		
+		startNanos = endNanos;
+		ioScratchTable.checkRowSums();
+//		if(!ioScratchTable.rowSumsValid)
+//			throw new Exception("Table failed the row-sum test!");
+		ioStats.addStageNanos(GenerationStats.Stage.Score, System.nanoTime() - startNanos);
+		ioStats.countOutcome(ioScratchTable.rowSumsValid ? GenerationStats.Outcome.Accepted : GenerationStats.Outcome.RowSumFailed);
+		if(!ioScratchTable.rowSumsValid)
+			ioStats.addRowSumDeviation(ioScratchTable.getRowSumDeviation());
+		return ioScratchTable.rowSumsValid;
+	}
+	
+	// A search over inTablesToTryCount tries that is spread over several threads but whose result doesn't depend on how many.
+	// The tries are split into fixed-size chunks, and each chunk draws from its own Random, seeded from the run's seed and the chunk's index.
+	// Chunks are handed out in order, each worker builds its tries in its own scratch table, and each chunk's accepted tables go into
+	// that chunk's own list. As soon as all of the chunks before it are done, a chunk's tables are passed on to the collector,
+	// so the collector gets the first inDesiredTableCount accepted tables in chunk order, which is the same
+	// whichever worker ran each chunk; chunks past the point where enough tables have been found are skipped.
+	// Several searches can share one pool of workers; see runTableSearches().
+	private class ParallelTableSearch
+	{
+		private final long baseSeed;
+		private final int desiredTableCount;
+		private final int tablesToTryCount;
+		private final float desiredHeritability;
+		private final float heritabilityTolerance;
+		private final Float desiredPrevalence;
+		private final int attributeCount;
+		private final String[] attributeNames;
+		private final GenotypeProbabilities genotypeProbabilities;
+		private final TableCollector collector;
+		private final SearchProgress progress;
+		private final GenerationStats stats;
+		
+		private final int chunkCount;
+		private final List<List<PenetranceTable>> chunkTables;		// chunkTables.get(c) == the tables accepted in chunk c, in the order they were found, until they go to the collector
+		private final boolean[] chunkDone;
+		private int nextChunk;				// The next chunk to be handed out
+		private int chunksDonePrefix;		// Chunks 0..chunksDonePrefix-1 are all done, and their tables are in the collector
+		
+		public ParallelTableSearch(
+			long inBaseSeed, int inDesiredTableCount, int inTablesToTryCount, float inDesiredHeritability, float inHeritabilityTolerance, Float inDesiredPrevalence,
+			int inAttributeCount, String[] inAttributeNames, GenotypeProbabilities inGenotypeProbabilities, TableCollector ioCollector, SearchProgress inProgress, GenerationStats ioStats)
+		{
+			baseSeed = inBaseSeed;
+			desiredTableCount = inDesiredTableCount;
+			tablesToTryCount = inTablesToTryCount;
+			desiredHeritability = inDesiredHeritability;
+			heritabilityTolerance = inHeritabilityTolerance;
+			desiredPrevalence = inDesiredPrevalence;
+			attributeCount = inAttributeCount;
+			attributeNames = inAttributeNames;
+			genotypeProbabilities = inGenotypeProbabilities;
+			collector = ioCollector;
+			progress = inProgress;
+			stats = ioStats;
+			
+			chunkCount = (tablesToTryCount + kSearchChunkSize - 1) / kSearchChunkSize;
+			chunkTables = new ArrayList<List<PenetranceTable>>(Collections.<List<PenetranceTable>>nCopies(chunkCount, null));
+			chunkDone = new boolean[chunkCount];
+		}
+		
+		public int getChunkCount()
+		{
+			return chunkCount;
+		}
+		
+		public PenetranceTable createScratchTable()
+		{
+			return SnpGenSimulator.createScratchTable(desiredHeritability, desiredPrevalence, attributeCount, attributeNames);
+		}
+		
+		// Return the index of the next chunk to run, or -1 if there are none left or the chunks done so far have found enough tables.
+		public synchronized int claimChunk()
+		{
+			if(nextChunk >= chunkCount || hasEnoughTables(collector, desiredTableCount))
+				return -1;
+			return nextChunk++;
+		}
+		
+		public void runChunk(int inChunk, PenetranceTable ioScratchTable, Random ioChunkRandom) throws Exception
+		{
+			List<PenetranceTable> tables = new ArrayList<PenetranceTable>();
+			int firstTry = inChunk * kSearchChunkSize;
+			int tryCount = Math.min(kSearchChunkSize, tablesToTryCount - firstTry);
+			ioChunkRandom.setSeed(calcChunkSeed(baseSeed, inChunk));
+			for(int i = 0; i < tryCount; ++i)
+			{
+				if(tryPenetranceTable(ioChunkRandom, ioScratchTable, genotypeProbabilities, heritabilityTolerance, stats))
 				{
-					int foo;
-					foo = 0;
-//							System.out.println("Failed to normalize the penetrance table");
-//							if(inDestFile != null)
-//								copy.saveToFile(new File(inDestFile.getParentFile(), "unnormalizedTable.txt"), false, true);
+					tables.add((PenetranceTable) ioScratchTable.clone());
+					// No single chunk needs to contribute more than desiredTableCount tables:
+					if(tables.size() >= desiredTableCount)
+						break;
 				}
-				else
+			}
+			synchronized(this)
+			{
+				chunkTables.set(inChunk, tables);
+				chunkDone[inChunk] = true;
+				while(chunksDonePrefix < chunkCount && chunkDone[chunksDonePrefix] && !hasEnoughTables(collector, desiredTableCount))
 				{
-					currentPenetranceTable.checkRowSums();
-//					if(!currentPenetranceTable.rowSumsValid)
-//						throw new Exception("Table failed the row-sum test!");
-					if(currentPenetranceTable.rowSumsValid)
+					for(PenetranceTable t: chunkTables.get(chunksDonePrefix))
 					{
-						penetranceTableList.add(currentPenetranceTable);
+						if(hasEnoughTables(collector, desiredTableCount))
+							break;
+						collector.add(t);
 					}
-//					if(inProgressHandler != null)
-//						inProgressHandler.setValue(whichModel * inDesiredTableCount + tableCountSoFar);
-
-					if(penetranceTableList.size() >= inDesiredTableCount)
-						break;
+					chunkTables.set(chunksDonePrefix++, null);
 				}
 			}
-			if(inProgressHandler != null)
-				inProgressHandler.setValue(inProgressValueBase + whichTableIteration);
+			progress.addTries(tryCount);
 		}
+	}
+	
+	// Funnels the progress of one or more ParallelTableSearches, from any number of workers, into one ProgressHandler.
+	private static class SearchProgress
+	{
+		private final ProgressHandler progressHandler;
+		private final int progressValueBase;
+		private int triesDone;
 		
-		PenetranceTable[] penetranceTables = penetranceTableList.toArray(new PenetranceTable[0]);
-		if(inUseOddsRatio)
-			Arrays.sort(penetranceTables, oddsComparator);
-		else
-			Arrays.sort(penetranceTables, edmComparator);
+		public SearchProgress(ProgressHandler inProgressHandler, int inProgressValueBase)
+		{
+			progressHandler = inProgressHandler;
+			progressValueBase = inProgressValueBase;
+		}
 		
-//		System.out.println("fixedConflictSuccessfully: " + PenetranceTable.fixedConflictSuccessfully);
-//		System.out.println("fixedConflictUnsuccessfully: " + PenetranceTable.fixedConflictUnsuccessfully);
-//		heritabilities = Arrays.copyOf(heritabilities, totalHeritabilityCount);
-//		printStats(heritabilities, 20);
-//		System.out.print("\t");
+		public synchronized void addTries(int inTryCount)
+		{
+			triesDone += inTryCount;
+			if(progressHandler != null)
+				progressHandler.setValue(progressValueBase + triesDone - 1);
+		}
+	}
+	
+	// Run inSearches on one pool of inThreadCount workers. Each worker takes chunks from the first search that has any left,
+	// so the searches are run roughly in order, and a worker that runs out of chunks in one search moves on to the next.
+	// Since each search's result doesn't depend on which workers ran its chunks, neither does the result of any search.
+	private void runTableSearches(final ParallelTableSearch[] inSearches, int inThreadCount) throws Exception
+	{
+		int totalChunkCount = 0;
+		for(ParallelTableSearch s: inSearches)
+			totalChunkCount += s.getChunkCount();
+		runWorkers(Math.min(inThreadCount, totalChunkCount), new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				runTableSearchWorker(inSearches);
+				return null;
+			}
+		});
+	}
+	
+	// Run inWorker on inThreadCount threads at once (or just on this thread, if inThreadCount <= 1), and wait for them all to finish.
+	// If any worker throws, the exception is rethrown here.
+	private static void runWorkers(int inThreadCount, Callable<Void> inWorker) throws Exception
+	{
+		int threadCount = Math.max(1, inThreadCount);
+		if(threadCount == 1)
+		{
+			inWorker.call();
+			return;
+		}
 		
-		return penetranceTables;
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try
+		{
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for(int i = 0; i < threadCount; ++i)
+				futures.add(executor.submit(inWorker));
+			for(Future<Void> f: futures)
+			{
+				try
+				{
+					f.get();
+				}
+				catch(ExecutionException ee)
+				{
+					Throwable cause = ee.getCause();
+					if(cause instanceof Exception)
+						throw (Exception) cause;
+					throw new ProcessingException(cause.toString());
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	private void runTableSearchWorker(ParallelTableSearch[] inSearches) throws Exception
+	{
+		PenetranceTable[] scratchTables = new PenetranceTable[inSearches.length];		// One per search, since the searches' models can differ
+		Random chunkRandom = new Random();
+		int chunk;
+		for(int whichSearch = 0; whichSearch < inSearches.length; )
+		{
+			chunk = inSearches[whichSearch].claimChunk();
+			if(chunk < 0)
+			{
+				scratchTables[whichSearch] = null;
+				++whichSearch;
+				continue;
+			}
+			if(scratchTables[whichSearch] == null)
+				scratchTables[whichSearch] = inSearches[whichSearch].createScratchTable();
+			inSearches[whichSearch].runChunk(chunk, scratchTables[whichSearch], chunkRandom);
+		}
+	}
+	
+	// The seed for a chunk of a ParallelTableSearch: a SplitMix64-style hash of the base seed and the chunk index,
+	// so that neighbouring chunks get unrelated streams.
+	private static long calcChunkSeed(long inBaseSeed, int inChunk)
+	{
+		long z = inBaseSeed + (inChunk + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	// The seed for a dataset generated by generateDatasetsInParallel(): the chunk-seed hash applied to each of the dataset's coordinates in turn.
+	private static long calcDatasetSeed(long inBaseSeed, int[] inCoordinates)
+	{
+		long outSeed = inBaseSeed;
+		for(int c: inCoordinates)
+			outSeed = calcChunkSeed(outSeed, c);
+		return outSeed;
 	}
 	
 	private PenetranceTableQuantile[] mergeQuantiles(PenetranceTableQuantile[] inQuantiles1, PenetranceTableQuantile[] inQuantiles2)
@@ -492,16 +1447,18 @@ public class SnpGenSimulator
 		return outPenetranceTableQuantiles;
 	}
 	
-	private void selectPenetranceTablesRepresentativesUniformly(int inQuantileCount, PenetranceTable[] tablePopulation, DocModel model)
+	// Choose inQuantileCount representatives from a population of tables, given their scores in increasing order,
+	// so that their scores are spread uniformly from the lowest score to the highest.
+	// Returns the indices, in inSortedScores, of the representatives.
+	static int[] selectRepresentativesUniformly(int inQuantileCount, double[] inSortedScores)
 	{
 		double[] targetRASs = new double[inQuantileCount];
 		
-		boolean useOddsRatio = model.getUseOddsRatio();
-		int tablePopulationSize = tablePopulation.length;
+		int tablePopulationSize = inSortedScores.length;
 		
 		// Set the target quantile scores:
-		double minRAS = tablePopulation[0].getQuantileScore(useOddsRatio);
-		double maxRAS = tablePopulation[tablePopulationSize - 1].getQuantileScore(useOddsRatio);
+		double minRAS = inSortedScores[0];
+		double maxRAS = inSortedScores[tablePopulationSize - 1];
 		if(inQuantileCount == 1)
 		{
 			targetRASs[0] = (minRAS + maxRAS) / 2F;
@@ -518,29 +1475,28 @@ public class SnpGenSimulator
 		int matchingTable;
 		int priorMatchingTable = -1;
 		
-		// Copy the tables from the appropriate spots in outPenetranceTableQuantiles to the model:
-		PenetranceTable[] modelTables = new PenetranceTable[inQuantileCount];
-		model.setPenetranceTables(modelTables);
+		// outRepresentatives[whichQuantile] == the index of the table chosen for the quantile:
+		int[] outRepresentatives = new int[inQuantileCount];
 		
-		// Initialize the outputs to null, for "not set yet":
+		// Initialize the outputs to -1, for "not set yet":
 		for(quantileIter = 0; quantileIter < inQuantileCount; ++quantileIter)
-			modelTables[quantileIter] = null;
+			outRepresentatives[quantileIter] = -1;
 
 		quantileIter = 0;
 		if(inQuantileCount > 1)
 		{
 			// If there's more than one quantile, then we know that the first quantile is the very first table.
-			modelTables[quantileIter++] = tablePopulation[tableIter++];
+			outRepresentatives[quantileIter++] = tableIter++;
 			priorMatchingTable = 0;
 		}
 		for(; tableIter < tablePopulationSize; ++tableIter)
 		{
 			// Look for the first reliefAccuracyScore greater than the current target:
-			if(tablePopulation[tableIter].getQuantileScore(useOddsRatio) > targetRASs[quantileIter])
+			if(inSortedScores[tableIter] > targetRASs[quantileIter])
 			{
 				// If the table before the current table is closer to the target than the current table, and is available, 
 				// then use it; else use the current table:
-				if(tableIter > 0 && Math.abs(tablePopulation[tableIter - 1].getQuantileScore(useOddsRatio) - targetRASs[quantileIter]) < Math.abs(tablePopulation[tableIter].getQuantileScore(useOddsRatio) - targetRASs[quantileIter]))
+				if(tableIter > 0 && Math.abs(inSortedScores[tableIter - 1] - targetRASs[quantileIter]) < Math.abs(inSortedScores[tableIter] - targetRASs[quantileIter]))
 					matchingTable = tableIter - 1;
 				else
 					matchingTable = tableIter;
@@ -553,7 +1509,7 @@ public class SnpGenSimulator
 						break;
 					++matchingTable;
 				}
-				modelTables[quantileIter] = tablePopulation[matchingTable];
+				outRepresentatives[quantileIter] = matchingTable;
 				priorMatchingTable = matchingTable;
 				++quantileIter;
 				if(quantileIter >= inQuantileCount)
@@ -565,15 +1521,25 @@ public class SnpGenSimulator
 		// but in that case, it doesn't matter which table we use, so we might as well use the last one.)
 		quantileIter = inQuantileCount - 1;
 		// If the last quantile hasn't been set yet,
-		if(modelTables[quantileIter] == null)
+		if(outRepresentatives[quantileIter] == -1)
 		{
 			tableIter = tablePopulationSize - 1;
 			// then set the last quantile to the last table,
-			modelTables[quantileIter--] = tablePopulation[tableIter--];
+			outRepresentatives[quantileIter--] = tableIter--;
 			// and check the quantile before it:
-			while(quantileIter >= 0 && (modelTables[quantileIter] == null || modelTables[quantileIter] == modelTables[quantileIter + 1]))
-				modelTables[quantileIter--] = tablePopulation[tableIter--];
+			while(quantileIter >= 0 && (outRepresentatives[quantileIter] == -1 || outRepresentatives[quantileIter] == outRepresentatives[quantileIter + 1]))
+				outRepresentatives[quantileIter--] = tableIter--;
 		}
+		return outRepresentatives;
+	}
+	
+	// The tables of inSortedTables at the indices inRepresentatives.
+	static PenetranceTable[] getRepresentatives(PenetranceTable[] inSortedTables, int[] inRepresentatives)
+	{
+		PenetranceTable[] outTables = new PenetranceTable[inRepresentatives.length];
+		for(int i = 0; i < inRepresentatives.length; ++i)
+			outTables[i] = inSortedTables[inRepresentatives[i]];
+		return outTables;
 	}
 	
 	private static PenetranceTableQuantile[] selectPenetranceTablesRepresentativesByQuantile(int inQuantileCount, PenetranceTablePopulation[] inPenetranceTablePopulations)
@@ -761,7 +1727,7 @@ public class SnpGenSimulator
 					}
 					if(whichCell >= inTable.cellCount)
 						throw new InputException("Got a table with too many cells");
-					inTable.cells[whichCell++] = new PenetranceTable.PenetranceCell(cellValue);
+					inTable.setPenetranceValue(whichCell++, cellValue);
 				}
 			}
 			if(whichCell >= inTable.cellCount)
@@ -845,7 +1811,7 @@ public class SnpGenSimulator
 								}
 								if(whichCell >= table.cellCount)
 									throw new InputException("Got a table with too many cells");
-								table.cells[whichCell++] = new PenetranceTable.PenetranceCell(cellValue);
+								table.setPenetranceValue(whichCell++, cellValue);
 							}
 						}
 					}
@@ -974,8 +1940,10 @@ public class SnpGenSimulator
 		}
 		fileCount = 0;
 		boolean createDirectories = (document.datasetList.size() > 1);
-		for(DocDataset dd: document.datasetList)
+		List<DatasetTask> datasetTasks = new ArrayList<DatasetTask>();
+		for(int whichDocDataset = 0; whichDocDataset < document.datasetList.size(); ++whichDocDataset)
 		{
+			DocDataset dd = document.datasetList.get(whichDocDataset);
 			destFilename = null;
 			directory = null;
 			destFile = dd.outputFile;
@@ -1020,15 +1988,22 @@ public class SnpGenSimulator
 						datasetFile = new File(subdirectory, destFilename + "_EDM-" + quantileName + "_" + datasetName + ".txt");
 					else
 						datasetFile = null;
-					StringBuilder header = new StringBuilder();
-					
-					int[][] dataset = null;
-					generateAndSaveDataset(random, predictiveDataset, noiseDataset, q.tables, totalAttributeCount, caseCount, controlCount, inMinorAlleleFreqMin, inMinorAlleleFreqMax, datasetFile, header);
-					if(inProgressHandler != null)
-						inProgressHandler.setValue(++fileCount);
+					if(datasetThreadCount == null)
+					{
+						generateAndSaveDataset(random, predictiveDataset, noiseDataset, q.tables, totalAttributeCount, caseCount, controlCount, inMinorAlleleFreqMin, inMinorAlleleFreqMax, datasetFile, null, null, null);
+						if(inProgressHandler != null)
+							inProgressHandler.setValue(++fileCount);
+					}
+					else
+					{
+						datasetTasks.add(new DatasetTask(
+							new int[] {whichDocDataset, whichQuantile, whichDataset}, q.tables, totalAttributeCount, caseCount, controlCount, inMinorAlleleFreqMin, inMinorAlleleFreqMax, datasetFile));
+					}
 				}
 			}
 		}
+		if(datasetThreadCount != null)
+			generateDatasetsInParallel(datasetTasks, random.nextLong(), predictiveDataset, noiseDataset, datasetThreadCount, inProgressHandler);
 		
 //		File caseControlFile = null;
 //		caseControlFile = new File(directory, dd.outputFile + "_caseControlValues.txt");
@@ -1047,6 +2022,108 @@ public class SnpGenSimulator
 		System.out.println("Done generating datasets.");
 	}
 	
+	// One dataset for generateDatasetsInParallel() to generate: one replicate of one DocDataset for one quantile.
+	private static class DatasetTask
+	{
+		public final int[] coordinates;		// {which DocDataset, which quantile, which replicate}
+		public final PenetranceTable[] tables;
+		public final int totalAttributeCount;
+		public final int caseCount;
+		public final int controlCount;
+		public final float minorAlleleFreqMin;
+		public final float minorAlleleFreqMax;
+		public final File datasetFile;
+		public final int[][] cellCaseCounts;		// The task's own tallies, since the tables are shared with the quantile's other tasks
+		public final int[][] cellControlCounts;
+		
+		public DatasetTask(
+			int[] inCoordinates, PenetranceTable[] inTables, int inTotalAttributeCount, int inCaseCount, int inControlCount,
+			float inMinorAlleleFreqMin, float inMinorAlleleFreqMax, File inDatasetFile)
+		{
+			coordinates = inCoordinates;
+			tables = inTables;
+			totalAttributeCount = inTotalAttributeCount;
+			caseCount = inCaseCount;
+			controlCount = inControlCount;
+			minorAlleleFreqMin = inMinorAlleleFreqMin;
+			minorAlleleFreqMax = inMinorAlleleFreqMax;
+			datasetFile = inDatasetFile;
+			cellCaseCounts = new int[inTables.length][];
+			cellControlCounts = new int[inTables.length][];
+			for(int j = 0; j < inTables.length; ++j)
+			{
+				cellCaseCounts[j] = new int[inTables[j].cellCount];
+				cellControlCounts[j] = new int[inTables[j].cellCount];
+			}
+		}
+		
+		public void run(long inBaseSeed, int[][] inPredictiveDataset, int[][] inNoiseDataset) throws Exception
+		{
+			Random random = new UnsynchronizedRandom(calcDatasetSeed(inBaseSeed, coordinates));
+			generateAndSaveDataset(random, inPredictiveDataset, inNoiseDataset, tables, totalAttributeCount, caseCount, controlCount, minorAlleleFreqMin, minorAlleleFreqMax,
+				datasetFile, null, cellCaseCounts, cellControlCounts);
+		}
+		
+		public void copyCellCountsToTables()
+		{
+			for(int j = 0; j < tables.length; ++j)
+			{
+				System.arraycopy(cellCaseCounts[j], 0, tables[j].cellCaseCount, 0, cellCaseCounts[j].length);
+				System.arraycopy(cellControlCounts[j], 0, tables[j].cellControlCount, 0, cellControlCounts[j].length);
+			}
+		}
+	}
+	
+	// Generate the datasets of inTasks on a pool of inThreadCount workers; each worker takes the next task in the list whenever it's free,
+	// so the workers share all of the tasks, whatever their DocDataset, quantile and replicate. Each task draws from its own Random,
+	// seeded from inBaseSeed and the task's coordinates, and counts its cells in its own tallies rather than in the shared tables,
+	// so no dataset depends on which worker made it or when. Afterwards each quantile's tables hold the counts of the quantile's last task,
+	// as they would after the sequential loop.
+	private static void generateDatasetsInParallel(
+		final List<DatasetTask> inTasks, final long inBaseSeed, final int[][] inPredictiveDataset, final int[][] inNoiseDataset, int inThreadCount,
+		final ProgressHandler inProgressHandler) throws Exception
+	{
+		for(DatasetTask t: inTasks)
+		{
+			for(PenetranceTable table: t.tables)
+				table.clear();
+		}
+		
+		final AtomicInteger nextTask = new AtomicInteger();
+		final AtomicInteger doneCount = new AtomicInteger();
+		final AtomicBoolean failed = new AtomicBoolean();
+		runWorkers(Math.min(inThreadCount, inTasks.size()), new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				int whichTask;
+				while(!failed.get() && (whichTask = nextTask.getAndIncrement()) < inTasks.size())
+				{
+					try
+					{
+						inTasks.get(whichTask).run(inBaseSeed, inPredictiveDataset, inNoiseDataset);
+					}
+					catch(Exception ex)
+					{
+						failed.set(true);		// Don't start any more tasks
+						throw ex;
+					}
+					if(inProgressHandler != null)
+					{
+						synchronized(inProgressHandler)
+						{
+							inProgressHandler.setValue(doneCount.incrementAndGet());
+						}
+					}
+				}
+				return null;
+			}
+		});
+		
+		for(DatasetTask t: inTasks)
+			t.copyCellCountsToTables();
+	}
+	
 	public void calcStatsForStdModels(SnpGenDocument inDoc) throws Exception
 	{
 		if(inDoc.inputFile != null)
@@ -1092,7 +2169,7 @@ public class SnpGenSimulator
 		int popCount = inPopCount;
 		double[] scores = new double[popCount];
 		PenetranceTable[] pop;
-		pop = generatePenetranceTables(inRandom, popCount, 100 * popCount, (float)herit, inHeritabilityTolerance, null, 2, new String[]{"foo", "bar"}, new float[]{(float)maf, (float)maf}, false, null, 0);
+		pop = generatePenetranceTables(inRandom, popCount, 100 * popCount, (float)herit, inHeritabilityTolerance, null, 2, new String[]{"foo", "bar"}, new float[]{(float)maf, (float)maf}, false, null, 0, null);
 		int scoreCount = 0;
 		for(PenetranceTable t: pop)
 		{
@@ -1153,24 +2230,45 @@ public class SnpGenSimulator
 		System.out.print("\t" + f.format(100 * (float) bucketCount / (float) scoreCount));
 	}
 	
-	private static int[][] generateAndSaveDataset(
+	// Generate one dataset for one quantile's tables, as a replicate of inDataset, and return it as a matrix instead of saving it to a file.
+	// The cases are in the first rows and the controls in the rest; the class is in the last column.
+	public GenotypeMatrix generateDatasetMatrix(DocDataset inDataset, int inWhichQuantile, GenotypeMatrix.Backing inBacking) throws Exception
+	{
+		int[][] predictiveDataset = null;
+		if(document.predictiveInputFile != null)
+			predictiveDataset = parseDataInputFile(document.predictiveInputFile, null);
+		int[][] noiseDataset = null;
+		if(document.noiseInputFile != null)
+			noiseDataset = parseDataInputFile(document.noiseInputFile, null);
+		
+		int caseCount = inDataset.caseCount.getInteger();
+		int controlCount = inDataset.controlCount.getInteger();
+		int totalAttributeCount = inDataset.totalAttributeCount.getInteger();
+		GenotypeMatrix outMatrix = new GenotypeMatrix(caseCount + controlCount, totalAttributeCount + 1, inBacking);
+		generateAndSaveDataset(random, predictiveDataset, noiseDataset, penetranceTableQuantiles[inWhichQuantile].tables, totalAttributeCount, caseCount, controlCount,
+			inDataset.alleleFrequencyMin.getFloat(), inDataset.alleleFrequencyMax.getFloat(), null, outMatrix, null, null);
+		return outMatrix;
+	}
+	
+	// Write the dataset to inDestFile, if it's not null, and into ioMatrix, if it's not null.
+	// The cases and controls that land in each cell of each table are counted in outCellCaseCounts[whichTable] and outCellControlCounts[whichTable];
+	// if those are null, the tables are cleared and the counts go into their own cellCaseCount and cellControlCount.
+	private static void generateAndSaveDataset(
 		Random inRandom, int[][] inPredictiveDataset, int[][] inNoiseDataset, PenetranceTable[] inTables, int inTotalAttributeCount, int inCaseCount, int inControlCount,
-		double inMinorAlleleFreqMin, double inMinorAllelFreqMax, File inDestFile, StringBuilder outHeader)
+		double inMinorAlleleFreqMin, double inMinorAllelFreqMax, File inDestFile, GenotypeMatrix ioMatrix, int[][] outCellCaseCounts, int[][] outCellControlCounts)
 		throws Exception
 	{
 		double prob;
 		double penetrance;
-		PenetranceTable.CellId cellId;
 		double sumCaseFractions, sumControlFractions;
-		// caseIntervals[i] == the right edge of the ith probability-interval for cases; similarly for controls
-		double[][] caseIntervals, controlIntervals;
-		PrintWriter outputStream = null;
-		int[][] outputArray = new int[inCaseCount + inControlCount][inTotalAttributeCount + 1]; 
+		// caseSamplers[j] samples the cell of the jth table that a case lands in; similarly for controls
+		CellSampler[] caseSamplers, controlSamplers;
+		DatasetWriter outputStream = null;
 
 		try
 		{
 			if(inDestFile != null)
-				outputStream = new PrintWriter(new FileWriter(inDestFile));
+				outputStream = new DatasetWriter(inDestFile);
 			
 			// The order of attributes: non-predictive attributes, followed by predictive attributes from the file, followed by predictive attributes from the SNPGen models.
 			
@@ -1186,79 +2284,66 @@ public class SnpGenSimulator
 			if(inNoiseDataset != null)
 				neededNoiseAttributeCount -= inNoiseDataset[0].length;		// We don't need to create noise for the columns of inNoiseData
 			
-			// Header for non-predictive attributes:
-			for(int i = 0; i < totalNoiseAttributeCount; ++i)
-			{
-				if(outputStream != null)
-					outputStream.print("N" + i + "\t");
-				outHeader.append("N" + i + "\t");
-			}
-			
-			// Header for predictive attributes from file:
-			if(inPredictiveDataset != null)
+			if(outputStream != null)
 			{
-				for(int i = 0; i < inPredictiveDataset[0].length - 1; ++i)
+				// Header for non-predictive attributes:
+				for(int i = 0; i < totalNoiseAttributeCount; ++i)
 				{
-					String attributeName = "P" + (snpGenAttributeCount + 1 + i);
-					if(outputStream != null)
-						outputStream.print(attributeName + "\t");
-					outHeader.append(attributeName + "\t");
+					outputStream.print("N");
+					outputStream.print(Integer.toString(i));
+					outputStream.printTab();
 				}
-			}
-			
-			// Header for predictive attributes from SNPGen models:
-			for(PenetranceTable t: inTables)
-			{
-				for(String n: t.getAttributeNames())
+				
+				// Header for predictive attributes from file:
+				if(inPredictiveDataset != null)
 				{
-					if(outputStream != null)
-						outputStream.print(n + "\t");
-					outHeader.append(n + "\t");
+					for(int i = 0; i < inPredictiveDataset[0].length - 1; ++i)
+					{
+						outputStream.print("P");
+						outputStream.print(Integer.toString(snpGenAttributeCount + 1 + i));
+						outputStream.printTab();
+					}
 				}
-			}
-			
-			if(outputStream != null)
-			{
+				
+				// Header for predictive attributes from SNPGen models:
+				for(PenetranceTable t: inTables)
+				{
+					for(String n: t.getAttributeNames())
+					{
+						outputStream.print(n);
+						outputStream.printTab();
+					}
+				}
+				
 				outputStream.print("Class");
 				outputStream.println();
 			}
-			outHeader.append("Class");
 			
-			// Calculate the values of caseIntervals and controlIntervals, such that the length of each interval is the desired probability
-			// of a given case or control (respectively) landing in a given cell.
-			// This is used for sampling the cells in the dataset.
+			// Build the alias tables that sample the cells in the dataset: the probability of a given case landing in the ith cell
+			// is proportional to the probability of the cell's genotype times its penetrance; similarly for controls, with 1 - penetrance.
 			int tableCount = inTables.length;
-			caseIntervals = new double[tableCount][];
-			controlIntervals = new double[tableCount][];
+			caseSamplers = new CellSampler[tableCount];
+			controlSamplers = new CellSampler[tableCount];
 			for(int j = 0; j < tableCount; ++j)
 			{
-				cellId = new PenetranceTable.CellId(inTables[j].attributeCount);
 				sumCaseFractions = 0;
 				sumControlFractions = 0;
-				caseIntervals[j] = new double[inTables[j].cellCount];
-				controlIntervals[j] = new double[inTables[j].cellCount];
-				// Sum up all the case-fractions, storing the partial case-fractions to the caseIntervals array; do the same with controls:
+				double[] caseFractions = new double[inTables[j].cellCount];
+				double[] controlFractions = new double[inTables[j].cellCount];
 				for(int i = 0; i < inTables[j].cellCount; ++i)
 				{
-					inTables[j].masterIndexToCellId(i, cellId);
-					prob = inTables[j].getProbabilityProduct(cellId);
-					penetrance = inTables[j].getPenetranceValue(cellId);
+					prob = inTables[j].getProbabilityProduct(i);
+					penetrance = inTables[j].getPenetranceValue(i);
 					
-					sumCaseFractions += prob * penetrance;
-					sumControlFractions += prob * (1 - penetrance);
-					caseIntervals[j][i] = sumCaseFractions;
-					controlIntervals[j][i] = sumControlFractions;
+					caseFractions[i] = prob * penetrance;
+					controlFractions[i] = prob * (1 - penetrance);
+					sumCaseFractions += caseFractions[i];
+					sumControlFractions += controlFractions[i];
 				}
 				assert Math.abs(sumCaseFractions + sumControlFractions - 1.0) < kErrorLimit;
-				// Divide each element of caseIntervals and controlIntervals by the appropriate total sum.
-				for(int i = 0; i < inTables[j].cellCount; ++i)
-				{
-					caseIntervals[j][i] /= sumCaseFractions;
-					controlIntervals[j][i] /= sumControlFractions;
-				}
+				caseSamplers[j] = new CellSampler(caseFractions);
+				controlSamplers[j] = new CellSampler(controlFractions);
 			}
-			// Now, the length of the interval from caseIntervals[i-1] to caseIntervals[i]
-			// == the probability that a random case is in the ith cell of the penetrance table; similarly for controls.
 			
 			// Generate allele frequencies
 			// For each attribute, frequency[0] is the major-major allele and frequency[2] is the minor-minor allele.
@@ -1268,11 +2353,31 @@ public class SnpGenSimulator
 				double maf = inRandom.nextDouble() * (inMinorAllelFreqMax - inMinorAlleleFreqMin) + inMinorAlleleFreqMin;
 				PenetranceTable.calcAlleleFrequencies(maf, alleleFrequencies[i]);
 			}
+			NoiseGenotypeKernel noiseKernel = new NoiseGenotypeKernel(alleleFrequencies);
 			
-			for(int j = 0; j < tableCount; ++j)
-				inTables[j].clear();
-			printInstances(inRandom, inPredictiveDataset, inNoiseDataset, 0, inTables, neededNoiseAttributeCount, alleleFrequencies, 1, inCaseCount, caseIntervals, outputStream, outputArray, 0);
-			printInstances(inRandom, inPredictiveDataset, inNoiseDataset, inCaseCount, inTables, neededNoiseAttributeCount, alleleFrequencies, 0, inControlCount, controlIntervals, outputStream, outputArray, inCaseCount);
+			int[][] cellCaseCounts = outCellCaseCounts;
+			int[][] cellControlCounts = outCellControlCounts;
+			if(cellCaseCounts == null)
+			{
+				cellCaseCounts = new int[tableCount][];
+				cellControlCounts = new int[tableCount][];
+				for(int j = 0; j < tableCount; ++j)
+				{
+					inTables[j].clear();
+					cellCaseCounts[j] = inTables[j].cellCaseCount;
+					cellControlCounts[j] = inTables[j].cellControlCount;
+				}
+			}
+			else
+			{
+				for(int j = 0; j < tableCount; ++j)
+				{
+					Arrays.fill(cellCaseCounts[j], 0);
+					Arrays.fill(cellControlCounts[j], 0);
+				}
+			}
+			printInstances(inRandom, inPredictiveDataset, inNoiseDataset, 0, inTables, noiseKernel, 1, inCaseCount, caseSamplers, outputStream, ioMatrix, 0, cellCaseCounts);
+			printInstances(inRandom, inPredictiveDataset, inNoiseDataset, inCaseCount, inTables, noiseKernel, 0, inControlCount, controlSamplers, outputStream, ioMatrix, inCaseCount, cellControlCounts);
 		}
 		finally
 		{
@@ -1281,15 +2386,14 @@ public class SnpGenSimulator
 				outputStream.close();
 			}
 		}
-		return outputArray;
 	}
 	
 	private static void printInstances(
-		Random inRandom, int[][] inPredictiveDataset, int[][] inNoiseDataset, int inWhichFirstNoise, PenetranceTable[] inTables, int inNoiseAttributeCount, double[][] inAlleleFrequencies,
-		int inInstanceClass, int inInstanceCount, double[][] inInstanceIntervals, PrintWriter inOutputStream, int[][] inOutputArray, int inFirstOutputLine)
+		Random inRandom, int[][] inPredictiveDataset, int[][] inNoiseDataset, int inWhichFirstNoise, PenetranceTable[] inTables, NoiseGenotypeKernel inNoiseKernel,
+		int inInstanceClass, int inInstanceCount, CellSampler[] inCellSamplers, DatasetWriter inOutputStream, GenotypeMatrix ioOutputMatrix, int inFirstOutputLine,
+		int[][] ioCellCounts)
 		throws Exception
 	{
-		double rand;
 		int whichCell;
 		PenetranceTable.CellId cellId;
 		int whichOutputLine = inFirstOutputLine;
@@ -1306,11 +2410,15 @@ public class SnpGenSimulator
 		
 		double[] alleleFrequencies = new double[3];
 		
+		// The noise attributes of each row are generated together into noiseGenotypes, and written out together:
+		int noiseAttributeCount = inNoiseKernel.getAttributeCount();
+		int[] noiseGenotypes = new int[noiseAttributeCount];
+		
 		// The order of attributes: non-predictive attributes, followed by predictive attributes from the file, followed by predictive attributes from the SNPGen models.
 		
 		// How heterogeneity works:
 		// If there are two tables, and Table 1 has a contribution-fraction of 0.3 and Table 2 has a contribution-fraction of 0.7,
-		// then for the first 0.3 of the instances we generate the columns corresponding to Table 1 according to Table 1's signal (ie, according to Table 1's inInstanceIntervals)
+		// then for the first 0.3 of the instances we generate the columns corresponding to Table 1 according to Table 1's signal (ie, according to Table 1's inCellSamplers)
 		// and we generate the columns corresponding to Table 2 as noise;
 		// for the next 0.7 of the instances we generate noise for Table 1 and signal for Table 2.
 		
@@ -1344,22 +2452,22 @@ public class SnpGenSimulator
 				if(whichNoise >= inNoiseDataset.length)
 					throw new Exception("Not enough noise input data");
 				for(int j = 0; j < noiseDatasetAttributeCount; ++j)
-					valueToOutput(inNoiseDataset[whichNoise][j], inOutputStream, true, inOutputArray, whichOutputLine, destWhich++);
+					valueToOutput(inNoiseDataset[whichNoise][j], inOutputStream, true, ioOutputMatrix, whichOutputLine, destWhich++);
 				++whichNoise;
 			}
 			
 			// Generate noise attributes
-			for(int j = 0; j < inNoiseAttributeCount; ++j)
+			inNoiseKernel.generate(inRandom, noiseGenotypes);
+			for(int j = 0; j < noiseAttributeCount; ++j)
+				noiseGenotypes[j] = kAlleleSymbols[noiseGenotypes[j]];
+			if(inOutputStream != null)
+				inOutputStream.printDigitsWithTabs(noiseGenotypes, noiseAttributeCount);
+			if(ioOutputMatrix != null)
 			{
-				noiseToOutput(inRandom, inAlleleFrequencies[j], inOutputStream, inOutputArray, whichOutputLine, destWhich++);
-//				rand = inRandom.nextDouble();
-//				if(rand < inAlleleFrequencyIntervals[0][j])
-//					valueToOutput(kMajorMajor, inOutputStream, true, inOutputArray, whichOutputLine, destWhich++);
-//				else if(rand < inAlleleFrequencyIntervals[1][j])
-//					valueToOutput(kMajorMinor, inOutputStream, true, inOutputArray, whichOutputLine, destWhich++);
-//				else
-//					valueToOutput(kMinorMinor, inOutputStream, true, inOutputArray, whichOutputLine, destWhich++);
+				for(int j = 0; j < noiseAttributeCount; ++j)
+					ioOutputMatrix.set(whichOutputLine, destWhich + j, noiseGenotypes[j]);
 			}
+			destWhich += noiseAttributeCount;
 			
 			if(inPredictiveDataset != null)
 			{
@@ -1370,7 +2478,7 @@ public class SnpGenSimulator
 				if(whichPredictive >= inPredictiveDataset.length)
 					throw new Exception("Not enough predictive input data");
 				for(int j = 0; j < predictiveDatasetAttributeCount; ++j)
-					valueToOutput(inPredictiveDataset[whichPredictive][j], inOutputStream, true, inOutputArray, whichOutputLine, destWhich++);
+					valueToOutput(inPredictiveDataset[whichPredictive][j], inOutputStream, true, ioOutputMatrix, whichOutputLine, destWhich++);
 				++whichPredictive;
 			}
 			
@@ -1384,7 +2492,7 @@ public class SnpGenSimulator
 			// then we are choosing a cell in the 9-D table which is the cross-product of the three given tables.
 			// (Added later: I'm not sure what the above comment is in aid of.)
 			
-			// As we iterate through the outer loop, we need to fill in each table's cellCaseCount or cellControlCount, as determined by inInstanceClass (a kluge).
+			// As we iterate through the outer loop, we need to fill in each table's case or control counts in ioCellCounts, as determined by the caller.
 			
 //			System.out.println("signal\t" + whichSignalTable);
 			
@@ -1396,26 +2504,13 @@ public class SnpGenSimulator
 				if(whichTable == whichSignalTable)
 				{
 //					System.out.println("signal");
-					// Pick a random number from 0 to 1 and see which instance-interval it's in:
-					rand = inRandom.nextDouble();
-					whichCell = -1;
-					for(int k = 0; k < table.cellCount; ++k)
-					{
-						if(rand < inInstanceIntervals[whichTable][k])
-						{
-							whichCell = k;
-							break;
-						}
-					}
+					whichCell = inCellSamplers[whichTable].sample(inRandom);
 					assert 0 <= whichCell && whichCell < table.cellCount;
-					if(inInstanceClass == 1)
-						++table.cellCaseCount[whichCell];
-					else
-						++table.cellControlCount[whichCell];
+					++ioCellCounts[whichTable][whichCell];
 					table.masterIndexToCellId(whichCell, cellId);
 					for(int k = 0; k < table.attributeCount; ++k)
 					{
-						valueToOutput(kAlleleSymbols[cellId.getIndex(k)], inOutputStream, true, inOutputArray, whichOutputLine, destWhich++);
+						valueToOutput(kAlleleSymbols[cellId.getIndex(k)], inOutputStream, true, ioOutputMatrix, whichOutputLine, destWhich++);
 					}
 				}
 				else
@@ -1425,18 +2520,15 @@ public class SnpGenSimulator
 					for(int j = 0; j < table.attributeCount; ++j)
 					{
 						table.getAlleleFrequencies(j, alleleFrequencies);
-						int whichValue = noiseToOutput(inRandom, alleleFrequencies, inOutputStream, inOutputArray, whichOutputLine, destWhich++);
+						int whichValue = noiseToOutput(inRandom, alleleFrequencies, inOutputStream, ioOutputMatrix, whichOutputLine, destWhich++);
 						cellId.setIndex(j, whichValue);
 					}
 					whichCell = cellId.toMasterIndex(3);
-					if(inInstanceClass == 1)
-						++table.cellCaseCount[whichCell];
-					else
-						++table.cellControlCount[whichCell];
+					++ioCellCounts[whichTable][whichCell];
 				}
 			}
 			
-			valueToOutput(inInstanceClass, inOutputStream, false, inOutputArray, whichOutputLine, destWhich++);
+			valueToOutput(inInstanceClass, inOutputStream, false, ioOutputMatrix, whichOutputLine, destWhich++);
 			if(inOutputStream != null)
 				inOutputStream.println();
 			++whichOutputLine;
@@ -1455,7 +2547,7 @@ public class SnpGenSimulator
 //				{
 //					for(int k = 0; k < 3; ++k)
 //					{
-//						System.out.print(nf.format(table.cells[3 * j + k].getValue()) + "\t");
+//						System.out.print(nf.format(table.getPenetranceValue(3 * j + k)) + "\t");
 //					}
 //					System.out.println();
 //				}
@@ -1499,37 +2591,39 @@ public class SnpGenSimulator
 //		}
 	}
 	
-	private static int noiseToOutput(Random inRandom, double[] inAlleleFrequencies, PrintWriter inOutputStream, int[][] inOutputArray, int inWhichOutputLine, int inWhichOutputColumn)
+	private static int noiseToOutput(Random inRandom, double[] inAlleleFrequencies, DatasetWriter inOutputStream, GenotypeMatrix ioOutputMatrix, int inWhichOutputLine, int inWhichOutputColumn)
+		throws IOException
 	{
 		int outWhich;
 		double rand = inRandom.nextDouble();
 		if(rand < inAlleleFrequencies[0])
 		{
 			outWhich = 0;
-			valueToOutput(kMajorMajor, inOutputStream, true, inOutputArray, inWhichOutputLine, inWhichOutputColumn);
+			valueToOutput(kMajorMajor, inOutputStream, true, ioOutputMatrix, inWhichOutputLine, inWhichOutputColumn);
 		}
 		else if(rand < inAlleleFrequencies[0] + inAlleleFrequencies[1])
 		{
 			outWhich = 1;
-			valueToOutput(kMajorMinor, inOutputStream, true, inOutputArray, inWhichOutputLine, inWhichOutputColumn);
+			valueToOutput(kMajorMinor, inOutputStream, true, ioOutputMatrix, inWhichOutputLine, inWhichOutputColumn);
 		}
 		else
 		{
 			outWhich = 2;
-			valueToOutput(kMinorMinor, inOutputStream, true, inOutputArray, inWhichOutputLine, inWhichOutputColumn);
+			valueToOutput(kMinorMinor, inOutputStream, true, ioOutputMatrix, inWhichOutputLine, inWhichOutputColumn);
 		}
 		return outWhich;
 	}
 	
-	private static void valueToOutput(int inValue, PrintWriter inOutputStream, boolean inTabAfter, int[][] inOutputArray, int inWhichOutputLine, int inWhichOutputColumn)
+	private static void valueToOutput(int inValue, DatasetWriter inOutputStream, boolean inTabAfter, GenotypeMatrix ioOutputMatrix, int inWhichOutputLine, int inWhichOutputColumn)
+		throws IOException
 	{
 		if(inOutputStream != null)
 		{
 			inOutputStream.print(inValue);
 			if(inTabAfter)
-				inOutputStream.print("\t");
+				inOutputStream.printTab();
 		}
-		if(inOutputArray != null)
-			inOutputArray[inWhichOutputLine][inWhichOutputColumn] = inValue;
+		if(ioOutputMatrix != null)
+			ioOutputMatrix.set(inWhichOutputLine, inWhichOutputColumn, inValue);
 	}
 }
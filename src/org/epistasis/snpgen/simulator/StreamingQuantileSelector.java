@@ -0,0 +1,127 @@
+package org.epistasis.snpgen.simulator;
+
+import java.util.*;
+
+// Collects a population of accepted tables for SnpGenSimulator's quantile selection without keeping the whole population.
+// Every table's score is kept, in a primitive array, but only the tables that could still be chosen as a quantile are kept:
+// the lowest and highest quantileCount tables, and the kNeighborCount tables on each side of each target score,
+// where the targets are spread evenly from the lowest to the highest score, as in SnpGenSimulator.selectRepresentativesUniformly().
+// Until the population outgrows the pruning threshold nothing is dropped, so for small populations the selection is exact;
+// after that, a table can be dropped before the lowest and highest scores have settled and end up nearest a final target,
+// so the selection is approximate, but the scores are still exact.
+public class StreamingQuantileSelector implements SnpGenSimulator.TableCollector
+{
+	private static final int kNeighborCount = 2;
+	private static final int kMinPruneThreshold = 1024;
+
+	private final int quantileCount;
+	private final boolean useOddsRatio;
+	private final int pruneThreshold;		// Prune the kept tables when there are this many
+	private double[] scores;
+	private int scoreCount;
+	private List<PenetranceTable> keptTables;		// In the order they were added, except that pruning sorts them
+
+	public StreamingQuantileSelector(int inQuantileCount, boolean inUseOddsRatio)
+	{
+		quantileCount = inQuantileCount;
+		useOddsRatio = inUseOddsRatio;
+		// After a prune at most (2 + 2 * kNeighborCount) * quantileCount tables are left, so this leaves room for at least as many new ones:
+		pruneThreshold = Math.max(kMinPruneThreshold, 2 * (2 + 2 * kNeighborCount) * quantileCount);
+		scores = new double[1024];
+		scoreCount = 0;
+		keptTables = new ArrayList<PenetranceTable>();
+	}
+
+	// inTable becomes the selector's.
+	public void add(PenetranceTable inTable)
+	{
+		if(scoreCount == scores.length)
+			scores = Arrays.copyOf(scores, 2 * scores.length);
+		scores[scoreCount++] = inTable.getQuantileScore(useOddsRatio);
+		keptTables.add(inTable);
+		if(keptTables.size() >= pruneThreshold)
+			prune();
+	}
+
+	public int size()
+	{
+		return scoreCount;
+	}
+
+	// The scores of all of the tables added, in increasing order.
+	public double[] getSortedScores()
+	{
+		double[] outScores = Arrays.copyOf(scores, scoreCount);
+		Arrays.sort(outScores);
+		return outScores;
+	}
+
+	// Choose from the tables kept, which include the lowest and highest scoring tables.
+	public PenetranceTable[] selectQuantileTables(int inQuantileCount)
+	{
+		PenetranceTable[] sortedTables = getSortedTables();
+		double[] sortedScores = new double[sortedTables.length];
+		for(int i = 0; i < sortedTables.length; ++i)
+			sortedScores[i] = sortedTables[i].getQuantileScore(useOddsRatio);
+		return SnpGenSimulator.getRepresentatives(sortedTables, SnpGenSimulator.selectRepresentativesUniformly(inQuantileCount, sortedScores));
+	}
+
+	// The tables kept, in increasing order of score.
+	private PenetranceTable[] getSortedTables()
+	{
+		PenetranceTable[] outTables = keptTables.toArray(new PenetranceTable[0]);
+		Arrays.sort(outTables, createComparator());
+		return outTables;
+	}
+
+	private Comparator<PenetranceTable> createComparator()
+	{
+		if(useOddsRatio)
+			return new PenetranceTable.PenetranceTableComparatorOddsRatio();
+		else
+			return new PenetranceTable.PenetranceTableComparatorEdm();
+	}
+
+	private void prune()
+	{
+		PenetranceTable[] sortedTables = getSortedTables();
+		int tableCount = sortedTables.length;
+		boolean[] keep = new boolean[tableCount];
+		double[] sortedScores = new double[tableCount];
+		for(int i = 0; i < tableCount; ++i)
+			sortedScores[i] = sortedTables[i].getQuantileScore(useOddsRatio);
+
+		// The ends of the population:
+		for(int i = 0; i < quantileCount && i < tableCount; ++i)
+		{
+			keep[i] = true;
+			keep[tableCount - 1 - i] = true;
+		}
+		// The neighbors of each target:
+		double minScore = sortedScores[0];
+		double maxScore = sortedScores[tableCount - 1];
+		for(int whichQuantile = 0; whichQuantile < quantileCount; ++whichQuantile)
+		{
+			double target;
+			if(quantileCount == 1)
+				target = (minScore + maxScore) / 2F;
+			else
+				target = minScore + whichQuantile * ((maxScore - minScore) / (quantileCount - 1));
+			// The first table whose score is greater than the target:
+			int above = Arrays.binarySearch(sortedScores, target);
+			if(above < 0)
+				above = -above - 1;
+			while(above < tableCount && sortedScores[above] <= target)
+				++above;
+			for(int i = Math.max(0, above - kNeighborCount); i < Math.min(tableCount, above + kNeighborCount); ++i)
+				keep[i] = true;
+		}
+
+		keptTables.clear();
+		for(int i = 0; i < tableCount; ++i)
+		{
+			if(keep[i])
+				keptTables.add(sortedTables[i]);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package org.epistasis.snpgen.simulator;
+
+import java.util.Random;
+
+// Finds one normalized penetrance table whose EDM (or odds ratio) is near a target value, directly, rather than by generating
+// a population of tables and choosing the nearest quantile.
+// Each candidate is built from coordinates in the space of tables that satisfy the row-sum invariant
+// (see PenetranceTable.generateUnnormalizedFromCoordinates()), so it always passes the row-sum test, and is then normalized
+// to the desired prevalence and heritability as the table search does. Normalization is an affine map of the cells, so the score
+// depends only on the direction of the coordinates, and the search is over the unit sphere: a (1+1) evolution strategy moves
+// the current coordinates by a Gaussian step, keeps the move if the score gets nearer the target, and widens the step after
+// a success and narrows it after a failure, so that it settles at about one success in five. If the step shrinks to nothing
+// before the target is reached, the search restarts from new random coordinates.
+// The same search, maximizing the heritability instead, estimates how high a heritability a model can reach.
+public class TargetScoreSolver
+{
+	private static final double kInitialStepSize = 0.5;
+	private static final double kMinStepSize = 1e-6;
+	private static final double kStepGrowth = 1.5;
+	private static final double kStepShrink = Math.pow(kStepGrowth, -0.25);		// Four failures undo one success
+
+	private final Random random;
+	private final boolean useFusedNormalization;
+	private int evaluationCount;		// The number of candidates the last search tried
+	private int restartCount;			// The number of times the last search restarted
+	private double bestValue;			// The lowest value of the objective found by the last minimize()
+
+	public TargetScoreSolver(Random inRandom, boolean inUseFusedNormalization)
+	{
+		random = inRandom;
+		useFusedNormalization = inUseFusedNormalization;
+	}
+
+	public int getEvaluationCount()
+	{
+		return evaluationCount;
+	}
+
+	public int getRestartCount()
+	{
+		return restartCount;
+	}
+
+	// Try up to inMaxEvaluations candidates, stopping as soon as one's score is within inTolerance * |inTargetScore| of inTargetScore.
+	// Returns the candidate whose score was nearest the target, which may not be within the tolerance if the target
+	// can't be reached with these settings, or null if no candidate could be normalized to the desired heritability.
+	public PenetranceTable solve(
+		float inDesiredHeritability, Float inDesiredPrevalence, String[] inAttributeNames, GenotypeProbabilities inGenotypeProbabilities,
+		boolean inUseOddsRatio, final double inTargetScore, double inTolerance, int inMaxEvaluations) throws Exception
+	{
+		PenetranceTable table = createTable(inDesiredHeritability, inDesiredPrevalence, inGenotypeProbabilities);
+		table.setAttributeNames(inAttributeNames);
+		final boolean useOddsRatio = inUseOddsRatio;
+		Objective distanceFromTarget = new Objective()
+		{
+			public double evaluate(PenetranceTable ioTable, double[] inCoordinates)
+			{
+				ioTable.reset();
+				ioTable.generateUnnormalizedFromCoordinates(inCoordinates);
+				if(useFusedNormalization)
+					ioTable.normalizeFused(-1);
+				else
+					ioTable.normalize();
+				if(!ioTable.normalized)
+					return Double.POSITIVE_INFINITY;
+				ioTable.checkRowSums();
+				if(!ioTable.rowSumsValid)
+					return Double.POSITIVE_INFINITY;
+				return Math.abs(ioTable.getQuantileScore(useOddsRatio) - inTargetScore);
+			}
+		};
+		return minimize(table, distanceFromTarget, inTolerance * Math.abs(inTargetScore), inMaxEvaluations, true);
+	}
+
+	// Estimate the highest heritability that a table can have at inDesiredPrevalence with these genotype probabilities,
+	// by maximizing the heritability that tables have after they're scaled to the unit interval and adjusted to the prevalence,
+	// but before they're scaled down to the desired heritability. Normalization fails whenever that is below the desired heritability.
+	// The estimate is the highest found in inMaxEvaluations candidates, so it's a lower bound on the true maximum.
+	public double estimateMaxHeritability(Float inDesiredPrevalence, GenotypeProbabilities inGenotypeProbabilities, int inMaxEvaluations) throws Exception
+	{
+		PenetranceTable table = createTable(0, inDesiredPrevalence, inGenotypeProbabilities);
+		Objective negativeHeritability = new Objective()
+		{
+			public double evaluate(PenetranceTable ioTable, double[] inCoordinates)
+			{
+				ioTable.reset();
+				ioTable.generateUnnormalizedFromCoordinates(inCoordinates);
+				ioTable.scaleToUnitInterval();
+				ioTable.adjustPrevalence();
+				double herit = ioTable.calcHeritability();
+				return Double.isNaN(herit) ? Double.POSITIVE_INFINITY : -herit;
+			}
+		};
+		minimize(table, negativeHeritability, Double.NEGATIVE_INFINITY, inMaxEvaluations, false);
+		return -bestValue;
+	}
+
+	private static PenetranceTable createTable(float inDesiredHeritability, Float inDesiredPrevalence, GenotypeProbabilities inGenotypeProbabilities)
+	{
+		PenetranceTable outTable = new PenetranceTable(inGenotypeProbabilities.getSnpStateCount(), inGenotypeProbabilities.getAttributeCount());
+		outTable.desiredHeritability = inDesiredHeritability;
+		outTable.desiredPrevalence = inDesiredPrevalence;
+		outTable.setGenotypeProbabilities(inGenotypeProbabilities);
+		return outTable;
+	}
+
+	// What the search minimizes: the value of the table with coordinates inCoordinates, which it builds in ioTable,
+	// or infinity if the table isn't acceptable.
+	private interface Objective
+	{
+		public double evaluate(PenetranceTable ioTable, double[] inCoordinates);
+	}
+
+	// Run the evolution strategy on inObjective for up to inMaxEvaluations candidates, stopping as soon as a value is <= inStopValue.
+	// The lowest value is left in bestValue. If inKeepBestTable, returns a copy of the table with the lowest value, or null if no candidate was acceptable.
+	private PenetranceTable minimize(PenetranceTable ioTable, Objective inObjective, double inStopValue, int inMaxEvaluations, boolean inKeepBestTable) throws Exception
+	{
+		int dimension = ioTable.basisSize;
+		double[] current = new double[dimension];
+		double[] candidate = new double[dimension];
+		double currentValue = Double.POSITIVE_INFINITY;
+		double step = 0;		// 0 means restart
+		PenetranceTable outBest = null;
+
+		bestValue = Double.POSITIVE_INFINITY;
+		restartCount = -1;
+		for(evaluationCount = 0; evaluationCount < inMaxEvaluations && !(bestValue <= inStopValue); ++evaluationCount)
+		{
+			if(step < kMinStepSize)
+			{
+				for(int i = 0; i < dimension; ++i)
+					candidate[i] = random.nextGaussian();
+			}
+			else
+			{
+				for(int i = 0; i < dimension; ++i)
+					candidate[i] = current[i] + step * random.nextGaussian();
+			}
+			normalizeVector(candidate);
+
+			double value = inObjective.evaluate(ioTable, candidate);
+			if(step < kMinStepSize)
+			{
+				++restartCount;
+				System.arraycopy(candidate, 0, current, 0, dimension);
+				currentValue = value;
+				// Only start stepping from coordinates that are acceptable:
+				step = (value < Double.POSITIVE_INFINITY) ? kInitialStepSize : 0;
+			}
+			else if(value < currentValue)
+			{
+				System.arraycopy(candidate, 0, current, 0, dimension);
+				currentValue = value;
+				step *= kStepGrowth;
+			}
+			else
+				step *= kStepShrink;
+
+			if(value < bestValue)
+			{
+				bestValue = value;
+				if(inKeepBestTable)
+					outBest = (PenetranceTable) ioTable.clone();
+			}
+		}
+		return outBest;
+	}
+
+	private static void normalizeVector(double[] ioVector)
+	{
+		double sumSquares = 0;
+		for(double v: ioVector)
+			sumSquares += v * v;
+		double factor = 1 / Math.sqrt(sumSquares);
+		for(int i = 0; i < ioVector.length; ++i)
+			ioVector[i] *= factor;
+	}
+}
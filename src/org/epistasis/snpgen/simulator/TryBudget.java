@@ -0,0 +1,76 @@
+package org.epistasis.snpgen.simulator;
+
+import java.text.NumberFormat;
+
+// The number of tries a table search needs to find a population of tables with a given probability,
+// sized from the acceptance rate and the speed of a pilot run of the same search (see SnpGenSimulator.estimateTryBudget()).
+// Each try is accepted independently with some rate r, so the number of tables found in n tries is binomial, and by the
+// Chernoff bound it falls short of the population with probability at most exp(-eps^2 * mu / 2), where mu = n * r
+// and the population is (1 - eps) * mu. Solving for mu gives mu = p + L + sqrt(L^2 + 2 * p * L), where p is the population
+// and L = ln(1 / (1 - probability)). The rate is itself only estimated from the pilot, so the same bound, applied to the pilot's
+// count of accepted tries, gives the lower confidence limit on the rate that's used for r (but never less than half the pilot's rate).
+public class TryBudget
+{
+	private final int pilotTryCount;
+	private final long pilotAcceptedCount;
+	private final long pilotNanos;
+	private final int populationCount;
+	private final double probability;
+	private final int tryCount;
+
+	public TryBudget(int inPilotTryCount, long inPilotAcceptedCount, long inPilotNanos, int inPopulationCount, double inProbability)
+	{
+		pilotTryCount = inPilotTryCount;
+		pilotAcceptedCount = inPilotAcceptedCount;
+		pilotNanos = inPilotNanos;
+		populationCount = inPopulationCount;
+		probability = inProbability;
+
+		double logInverseFailure = -Math.log(1 - inProbability);
+		double rate = getAcceptanceRate();
+		double rateLowerLimit = (inPilotAcceptedCount - Math.sqrt(2 * inPilotAcceptedCount * logInverseFailure)) / inPilotTryCount;
+		rate = Math.max(rateLowerLimit, rate / 2);
+		double acceptedNeeded = inPopulationCount + logInverseFailure + Math.sqrt(logInverseFailure * logInverseFailure + 2 * inPopulationCount * logInverseFailure);
+		tryCount = (int) Math.min(Integer.MAX_VALUE, Math.ceil(acceptedNeeded / rate));
+	}
+
+	// The tries to allow for the search.
+	public int getTryCount()
+	{
+		return tryCount;
+	}
+
+	// The fraction of the pilot's tries that were accepted.
+	public double getAcceptanceRate()
+	{
+		return pilotAcceptedCount / (double) pilotTryCount;
+	}
+
+	// The expected time the search will take: the tries it's expected to need to find the population, at the pilot's speed.
+	public double getExpectedSeconds()
+	{
+		return Math.min(tryCount, populationCount / getAcceptanceRate()) * getSecondsPerTry();
+	}
+
+	// The time the search would take if it used all of its tries.
+	public double getMaxSeconds()
+	{
+		return tryCount * getSecondsPerTry();
+	}
+
+	private double getSecondsPerTry()
+	{
+		return pilotNanos / 1e9 / pilotTryCount;
+	}
+
+	public String toString()
+	{
+		NumberFormat format = NumberFormat.getInstance();
+		format.setMaximumFractionDigits(4);
+		NumberFormat secondsFormat = NumberFormat.getInstance();
+		secondsFormat.setMaximumFractionDigits(1);
+		return "acceptance rate " + format.format(getAcceptanceRate()) + " in " + pilotTryCount + " pilot tries; "
+			+ tryCount + " tries to find " + populationCount + " tables with probability " + probability
+			+ "; ETA about " + secondsFormat.format(getExpectedSeconds()) + " s (at most " + secondsFormat.format(getMaxSeconds()) + " s)";
+	}
+}
@@ -0,0 +1,45 @@
+package org.epistasis.snpgen.simulator;
+
+import java.util.Random;
+
+// A Random that produces exactly the same numbers as a java.util.Random with the same seed, from the same linear congruential generator,
+// but keeps its state in a plain field rather than an AtomicLong, so each number is cheaper; it must only be used by one thread at a time.
+// It also gives the 53 random bits that nextDouble() scales into [0, 1), so that callers can compare them with integer thresholds.
+public class UnsynchronizedRandom extends Random
+{
+	private static final long serialVersionUID = 1L;
+	private static final long kMultiplier = 0x5DEECE66DL;
+	private static final long kAddend = 0xBL;
+	private static final long kMask = (1L << 48) - 1;
+
+	// No initializer, since Random's constructor sets it, through setSeed(), before this class's initializers would run:
+	private long state;
+
+	public UnsynchronizedRandom()
+	{
+		super();
+	}
+
+	public UnsynchronizedRandom(long inSeed)
+	{
+		super(inSeed);
+	}
+
+	public synchronized void setSeed(long inSeed)
+	{
+		super.setSeed(inSeed);		// Also forgets any saved nextGaussian()
+		state = (inSeed ^ kMultiplier) & kMask;
+	}
+
+	protected int next(int inBits)
+	{
+		state = (state * kMultiplier + kAddend) & kMask;
+		return (int) (state >>> (48 - inBits));
+	}
+
+	// nextDouble() == nextDoubleBits() / 2^53, for the same state.
+	public long nextDoubleBits()
+	{
+		return ((long) next(26) << 27) + next(27);
+	}
+}
@@ -671,16 +671,18 @@ class EditModelDialog extends JDialog implements ModelUpdater, FocusListener, Ch
 //		int width1 = prevalence.getWidth();
 //		int sWidth1 = prevalence.getPreferredSize().width;
 		
-		float heritabilityValue = (float) table.calcAndSetHeritability();
+		Metrics metrics = table.calcAndSetMetrics();
+		
+		float heritabilityValue = (float) metrics.heritability;
 		model.heritability.setFloat(heritabilityValue);
 		heritability.value.setText(floatNumberFormat.format(heritabilityValue));
 		
-		float prevalenceValue = (float) table.calcAndSetPrevalence();
+		float prevalenceValue = (float) metrics.prevalence;
 		model.prevalence.setFloat(prevalenceValue);
 		prevalence.value.setText(floatNumberFormat.format(prevalenceValue));
 		
-		edm.value.setText(floatNumberFormat.format(table.calcAndSetEdm()));
-		oddsRatio.value.setText(floatNumberFormat.format(table.calcAndSetOddsRatio()));
+		edm.value.setText(floatNumberFormat.format(metrics.edm));
+		oddsRatio.value.setText(floatNumberFormat.format(metrics.oddsRatio));
 		
 //		int width2 = prevalence.getWidth();
 //		int sWidth2 = prevalence.getPreferredSize().width;
@@ -59,6 +59,7 @@ class GenerateModelDialog extends JDialog implements ActionListener, PropertyCha
 	private JRadioButton				oddsButton;
 	private JFormattedTextField			quantileCountTextField;
 	private JFormattedTextField			quantilePopulationTextField;
+	private JCheckBox					autoTryBudgetCheckBox;
 	private JFormattedTextField			attributeCountTextField;
 	private JFormattedTextField			heritabilityTextField;
 	private JCheckBox					prevalenceCheckBox;
@@ -194,6 +195,12 @@ class GenerateModelDialog extends JDialog implements ActionListener, PropertyCha
 		return quantilePopulation;
 	}
 	
+	// If true, the number of tables to try should be sized by a pilot run (see SnpGenSimulator.estimateTryBudget()).
+	public boolean getAutoTryBudget()
+	{
+		return autoTryBudgetCheckBox.isSelected();
+	}
+	
 	public int getAttributeCountFieldValue()
 	{
 		int attrCount = 0;
@@ -356,6 +363,9 @@ class GenerateModelDialog extends JDialog implements ActionListener, PropertyCha
 //		populationPane.textField.setValue("100");
 		variantPane.add(populationPane);
 		
+		autoTryBudgetCheckBox = new JCheckBox("Size the try count from a pilot run");
+		variantPane.add(autoTryBudgetCheckBox);
+		
 		parameterPane.add(variantPane);
 		
 		
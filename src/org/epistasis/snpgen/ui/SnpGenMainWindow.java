@@ -783,6 +783,7 @@ public class SnpGenMainWindow // implements ChangeListener
 	{
 		JDialog dialog;
 		JProgressBar progressBar;
+		JLabel label;
 		
 		public ProgressDialog(String inLabel)
 		{
@@ -790,7 +791,8 @@ public class SnpGenMainWindow // implements ChangeListener
 			progressBar = new JProgressBar(0, 500);
 			dialog.add(BorderLayout.CENTER, progressBar);
 			progressBar.setVisible(true);
-			dialog.add(BorderLayout.NORTH, new JLabel(inLabel));
+			label = new JLabel(inLabel);
+			dialog.add(BorderLayout.NORTH, label);
 			dialog.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
 			dialog.setSize(300, 75);
 			dialog.setLocationRelativeTo(frame);
@@ -806,6 +808,18 @@ public class SnpGenMainWindow // implements ChangeListener
 			progressBar.setValue(inMax);
 		}
 		
+		// May be called from any thread.
+		public void setLabel(final String inLabel)
+		{
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					label.setText(inLabel);
+				}
+			});
+		}
+		
 		public void setVisible(boolean inVisibility)
 		{
 			dialog.setVisible(inVisibility);
@@ -1296,15 +1310,21 @@ public class SnpGenMainWindow // implements ChangeListener
 			final int desiredPopulationCount = modelDialog.getQuantilePopulationFieldValue();
 			long tryCountLong = Math.max((long) desiredPopulationCount * 100L, 100000L);
 			tryCountLong = Math.min(tryCountLong, Integer.MAX_VALUE);
-			final int tablesToTryCount = (int) tryCountLong;
+			final int defaultTryCount = (int) tryCountLong;
+			final boolean autoTryBudget = modelDialog.getAutoTryBudget();
 			document.rasPopulationCount.setValue(desiredPopulationCount);
-			document.rasTryCount.setValue(tablesToTryCount);
+			document.rasTryCount.setValue(defaultTryCount);
 			updateQuantileCountField(desiredQuantileCount);
 			
 			boolean errorReported = false;
 			try
 			{
  //   			documentLink.guiToDocument();
+				// Report an unreachable heritability before asking where to put the results;
+				// the simulator keeps the estimate, so generateTablesForModels() doesn't compute it again:
+				ArrayList<DocModel> checkList = new ArrayList<DocModel>();
+				checkList.add(model);
+				simulator.checkModelFeasibility(checkList);
     			final File outputFile = chooseFile(frame, "Location for model files");
     			document.outputFile = outputFile;
 				final ProgressDialog progressor = new ProgressDialog("Generating models...");
@@ -1318,6 +1338,15 @@ public class SnpGenMainWindow // implements ChangeListener
 				    	Exception outException = null;
 				    	try
 				    	{
+				    		int tablesToTryCount = defaultTryCount;
+				    		if(autoTryBudget)
+				    		{
+				    			// Size the try count from a pilot run instead:
+				    			TryBudget budget = simulator.estimateTryBudget(model, desiredPopulationCount, SnpGenSimulator.kDefaultTryBudgetProbability);
+				    			tablesToTryCount = budget.getTryCount();
+				    			document.rasTryCount.setValue(tablesToTryCount);
+				    			progressor.setLabel("Generating models (about " + Math.round(budget.getExpectedSeconds()) + " s)...");
+				    		}
 				    		if(progressor != null)
 				    		{
 				    			progressor.setMaximum(tablesToTryCount);
@@ -1609,8 +1638,24 @@ public class SnpGenMainWindow // implements ChangeListener
 			SnpGenSimulator simulator = new SnpGenSimulator();
 			simulator.setDocument(inDocument);
 			simulator.setRandomSeed(inDocument.randomSeed);
+			simulator.setUseClosedFormGeneration(inDocument.closedFormTables);
+			simulator.setUseFusedNormalization(inDocument.fusedNormalization);
+			simulator.setSearchThreadCount(inDocument.searchThreadCount);
+			simulator.setWriteGenerationStats(inDocument.generationStats);
+			simulator.setUseStreamingSelection(inDocument.streamingSelection);
+			simulator.setUseSeedIndexedTables(inDocument.seedIndexedTables);
+			simulator.setConvergenceTolerance(inDocument.convergenceTolerance);
+			if(inDocument.convergenceRule != null)
+				simulator.setConvergenceRule(ConvergenceMonitor.Rule.parseRule(inDocument.convergenceRule));
+			simulator.setUseStratifiedSampling(inDocument.stratifiedSampling);
+			simulator.setTargetScore(inDocument.targetScore);
+			if(inDocument.targetScoreTolerance != null)
+				simulator.setTargetScoreTolerance(inDocument.targetScoreTolerance);
+			simulator.setDatasetThreadCount(inDocument.datasetThreadCount);
 			int desiredQuantileCount = inDocument.rasQuantileCount.getInteger();
 			ArrayList<DocModel> modelList = inDocument.modelList;
+			if(inDocument.autoTryBudgetProbability != null)
+				inDocument.rasTryCount.setValue(simulator.estimateTryCount(modelList, inDocument.rasPopulationCount.getInteger(), inDocument.autoTryBudgetProbability));
 			double[][] allTableScores = simulator.generateTablesForModels(modelList, desiredQuantileCount, inDocument.rasPopulationCount.getInteger(), inDocument.rasTryCount.getInteger(), null);
 			if(inDocument.outputFile != null)
 				simulator.writeTablesAndScoresToFile(modelList, allTableScores, desiredQuantileCount, inDocument.outputFile);